@@ -157,7 +157,7 @@ export namespace NetworkAgent {
 
 		if (!hasTextContent) {
 			if (responseData.type === 'Image') {
-				const bitmap = result.responseAsImage;
+				const bitmap = result.getResponseAsImage();
 				if (bitmap) {
 					const outputStream = new java.io.ByteArrayOutputStream();
 					bitmap.compress(android.graphics.Bitmap.CompressFormat.PNG, 100, outputStream);
@@ -167,7 +167,7 @@ export namespace NetworkAgent {
 				}
 			}
 		} else {
-			data = result.responseAsString;
+			data = result.getResponseAsString();
 		}
 
 		const successfulRequestData: NetworkAgent.SuccessfulRequestData = {
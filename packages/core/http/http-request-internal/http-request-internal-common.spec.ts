@@ -0,0 +1,78 @@
+import { addHeader, defineLazyHeaders } from './http-request-internal-common';
+
+// Stand-in for Async.Http.RequestResult that counts how often JS would cross into Java.
+function createResult(count: number) {
+	const fields: string[] = [];
+	for (let i = 0; i < count; i++) {
+		fields.push('X-Header-' + i, 'value-' + i);
+	}
+	const result = {
+		calls: 0,
+		getHeaderFields() {
+			result.calls++;
+			return fields;
+		},
+		getHeaderCount() {
+			result.calls++;
+			return count;
+		},
+		getHeaderName(index: number) {
+			result.calls++;
+			return fields[index * 2];
+		},
+		getHeaderValue(index: number) {
+			result.calls++;
+			return fields[index * 2 + 1];
+		},
+	};
+	return result;
+}
+
+describe('defineLazyHeaders', () => {
+	it('does not touch the native result until headers are read', () => {
+		const result = createResult(30);
+		const response: any = {};
+		defineLazyHeaders(response, () => result.getHeaderFields());
+		expect(result.calls).toBe(0);
+	});
+
+	it('reads all headers with a single call and caches them', () => {
+		const result = createResult(30);
+		const response: any = {};
+		defineLazyHeaders(response, () => result.getHeaderFields());
+		expect(Object.keys(response.headers).length).toBe(30);
+		expect(response.headers['X-Header-29']).toBe('value-29');
+		expect(result.calls).toBe(1);
+	});
+
+	it('crosses the bridge once where the per-header loop crossed it 2N+1 times', () => {
+		const loop = createResult(30);
+		const expected = {};
+		const headerCount = loop.getHeaderCount();
+		for (let i = 0; i < headerCount; i++) {
+			addHeader(expected, loop.getHeaderName(i), loop.getHeaderValue(i));
+		}
+		expect(loop.calls).toBe(61);
+
+		const lazy = createResult(30);
+		const response: any = {};
+		defineLazyHeaders(response, () => lazy.getHeaderFields());
+		expect(response.headers).toEqual(expected);
+		expect(lazy.calls).toBe(1);
+	});
+
+	it('merges repeated header names into arrays', () => {
+		const response: any = {};
+		defineLazyHeaders(response, () => ['Set-Cookie', 'a=1', 'Set-Cookie', 'b=2', 'Content-Type', 'text/plain']);
+		expect(response.headers['Set-Cookie']).toEqual(['a=1', 'b=2']);
+		expect(response.headers['Content-Type']).toBe('text/plain');
+	});
+
+	it('is enumerable and can be replaced', () => {
+		const response: any = { statusCode: 200 };
+		defineLazyHeaders(response, () => ['A', '1']);
+		expect(Object.keys(response)).toContain('headers');
+		response.headers = { B: '2' };
+		expect(response.headers).toEqual({ B: '2' });
+	});
+});
@@ -9,3 +9,31 @@ export function addHeader(headers: Headers, key: string, value: string): void {
 		headers[key] = [headers[key], value];
 	}
 }
+
+/**
+ * Defines `headers` on the response as a getter that builds the object on first access.
+ * `getFields` must return the headers as a flat [name, value, name, value, ...] list, so a native
+ * result is crossed once instead of twice per header, and not at all when nobody reads them.
+ */
+export function defineLazyHeaders(target: object, getFields: () => ArrayLike<string>): void {
+	let headers: Headers;
+	Object.defineProperty(target, 'headers', {
+		configurable: true,
+		enumerable: true,
+		get() {
+			if (!headers) {
+				headers = {};
+				const fields = getFields();
+				getFields = null;
+				for (let i = 0; i + 1 < fields.length; i += 2) {
+					addHeader(headers, fields[i], fields[i + 1]);
+				}
+			}
+			return headers;
+		},
+		set(value: Headers) {
+			headers = value;
+			getFields = null;
+		},
+	});
+}
@@ -1,10 +1,10 @@
 // imported for definition purposes only
-import type { Headers, HttpResponse, HttpRequestOptions } from '../../http';
+import type { HttpResponse, HttpRequestOptions } from '../../http';
 import { Screen } from '../../platform/screen';
 import * as domainDebugger from '../../debugger';
 import { isObject } from '../../utils';
 import { BaseHttpContent } from '.';
-import { addHeader } from './http-request-internal-common';
+import { defineLazyHeaders } from './http-request-internal-common';
 export { addHeader } from './http-request-internal-common';
 
 interface PendingRequest {
@@ -47,24 +47,38 @@ function onRequestComplete(requestId: number, result: org.nativescript.widgets.A
 		return;
 	}
 
-	// read the headers
-	const headers: Headers = {};
-	if (result.headers) {
-		const jHeaders = result.headers;
-		const length = jHeaders.size();
-		let pair: org.nativescript.widgets.Async.Http.KeyValuePair;
-		for (let i = 0; i < length; i++) {
-			pair = jHeaders.get(i);
-			addHeader(headers, pair.key, pair.value);
-		}
+	const content = {
+		raw: result.raw,
+		requestURL: callbacks.url,
+		toNativeImage: () => {
+			return new Promise<any>((resolveImage, rejectImage) => {
+				const image = result.getResponseAsImage();
+				if (image != null) {
+					resolveImage(image);
+				} else {
+					rejectImage(new Error('Response content may not be converted to an Image'));
+				}
+			});
+		},
+		toNativeString: () => result.getResponseAsString(),
+	};
+
+	if (callbacks.contentHandler != null && isObject(callbacks.contentHandler) && !Array.isArray(callbacks.contentHandler)) {
+		Object.assign(content, callbacks.contentHandler);
 	}
 
+	const response = {
+		content,
+		statusCode: result.statusCode,
+	} as HttpResponse;
+	defineLazyHeaders(response, () => result.getHeaderFields());
+
 	if (__DEV__) {
 		const debugRequestInfo = debugRequests.get(requestId);
 
 		if (debugRequestInfo) {
 			const debugRequest = debugRequestInfo.debugRequest;
-			let mime = (headers['Content-Type'] ?? 'text/plain') as string;
+			let mime = result.getHeader('Content-Type') ?? 'text/plain';
 			if (typeof mime === 'string') {
 				mime = mime.split(';')[0] ?? 'text/plain';
 			}
@@ -75,9 +89,9 @@ function onRequestComplete(requestId: number, result: org.nativescript.widgets.A
 				url: result.url,
 				status: result.statusCode,
 				statusText: result.statusText,
-				headers: headers,
+				headers: response.headers,
 				mimeType: mime,
-				fromDiskCache: false,
+				fromDiskCache: result.fromCache,
 				timing: {
 					requestTime: debugRequestInfo.timestamp,
 					proxyStart: -1,
@@ -102,30 +116,7 @@ function onRequestComplete(requestId: number, result: org.nativescript.widgets.A
 		}
 	}
 
-	const content = {
-		raw: result.raw,
-		requestURL: callbacks.url,
-		toNativeImage: () => {
-			return new Promise<any>((resolveImage, rejectImage) => {
-				if (result.responseAsImage != null) {
-					resolveImage(result.responseAsImage);
-				} else {
-					rejectImage(new Error('Response content may not be converted to an Image'));
-				}
-			});
-		},
-		toNativeString: () => result.responseAsString,
-	};
-
-	if (callbacks.contentHandler != null && isObject(callbacks.contentHandler) && !Array.isArray(callbacks.contentHandler)) {
-		Object.assign(content, callbacks.contentHandler);
-	}
-
-	callbacks.resolveCallback({
-		content,
-		statusCode: result.statusCode,
-		headers: headers,
-	});
+	callbacks.resolveCallback(response);
 }
 
 function onRequestError(error: string, requestId: number) {
@@ -13,6 +13,26 @@
                 public getTransitionName(): string;
             }
             export module Async {
+                export const PRIORITY_USER_BLOCKING: number;
+                export const PRIORITY_DEFAULT: number;
+                export const PRIORITY_BACKGROUND: number;
+                export function getQueueDepth(): number;
+                export function getAverageWaitTime(priority: number): number;
+                export function getMaxWaitTime(priority: number): number;
+                export function getStartedTaskCount(priority: number): number;
+                export function resetQueueMetrics(): void;
+                export function setFrameCoalescingEnabled(value: boolean): void;
+                export function isFrameCoalescingEnabled(): boolean;
+                export function setFrameBudget(milliseconds: number): void;
+                export function getFrameBudget(): number;
+                export function getCompletionBatchCount(): number;
+                export function getCompletionDeliveredCount(): number;
+                export function getMaxCompletionBatchSize(): number;
+                export function getCompletionCarryOverCount(): number;
+                export function getAverageCompletionLatency(): number;
+                export function getMaxCompletionLatency(): number;
+                export function resetCompletionMetrics(): void;
+
                 export class CompleteCallback {
                     constructor(implementation: ICompleteCallback);
                     onComplete(result: Object, context: Object): void;
@@ -24,24 +44,121 @@
                     onError(error: string, context: Object): void;
                 }
 
+                export class ProgressCallback {
+                    constructor(implementation: IProgressCallback);
+                    onProgress(transferred: number, total: number, context: Object): void;
+                }
+
+                export interface IProgressCallback {
+                    onProgress(transferred: number, total: number, context: Object): void;
+                }
+
                 export module Image {
                     export function download(url: string, callback: CompleteCallback, context: any);
                 }
 
                 export module File {
+                    export function setThreadCount(count: number): void;
+                    export function getThreadCount(): number;
+                    export function getQueueDepth(): number;
+                    export function getAverageWaitTime(): number;
+                    export function getMaxWaitTime(): number;
+                    export function getAverageLatency(): number;
+                    export function getMaxLatency(): number;
+                    export function getCompletedTaskCount(): number;
+                    export function resetMetrics(): void;
                     export function copySync(src: string, dest: string, context: android.content.Context): boolean;
                     export function copy(src: java.io.InputStream, dest: java.io.OutputStream, callback: org.nativescript.widgets.Async.CompleteCallback, context: any): void;
 					export function copySync(src: java.io.InputStream, dest: java.io.OutputStream, context: any): boolean;
 					export function copy(src: string, dest: string, callback: org.nativescript.widgets.Async.CompleteCallback, context: android.content.Context): void;
+					export function copy(src: string, dest: string, progressCallback: org.nativescript.widgets.Async.ProgressCallback, callback: org.nativescript.widgets.Async.CompleteCallback, context: android.content.Context): TaskHandle;
+                    export const HASH_CRC32: string;
+                    export function hash(path: string, algorithm: string, callback: CompleteCallback, context: android.content.Context): void;
+                    export function hashAll(paths: string[], algorithm: string, callback: CompleteCallback, context: android.content.Context): void;
+                    export function hashSync(path: string, algorithm: string, context: android.content.Context): string;
+                    export function copyDirectory(src: string, dest: string, progressCallback: ProgressCallback, callback: CompleteCallback, context: any): TaskHandle;
+                    export function deleteDirectory(path: string, contentsOnly: boolean, progressCallback: ProgressCallback, callback: CompleteCallback, context: any): TaskHandle;
+                    export function getDirectorySize(path: string, callback: CompleteCallback, context: any): TaskHandle;
+                    export function listDirectory(path: string, recursive: boolean, callback: CompleteCallback, context: any): TaskHandle;
                     export function readText(path: string, encoding: string, callback: CompleteCallback, context: any);
                     export function read(path: string, callback: CompleteCallback, context: any);
                     export function readBuffer(param0: string, param1: org.nativescript.widgets.Async.CompleteCallback, param2: any): void;
+                    export function mapBuffer(path: string, callback: CompleteCallback, context: any): void;
+                    export function mapBuffer(path: string, offset: number, length: number, callback: CompleteCallback, context: any): void;
                     export function writeText(path: string, content: string, encoding: string, callback: CompleteCallback, context: any);
                     export function write(path: string, content: androidNative.Array<number>, callback: CompleteCallback, context: any);
                     export function writeBuffer(param0: string, param1: java.nio.ByteBuffer, param2: org.nativescript.widgets.Async.CompleteCallback, param3: any): void;
+                    export const ATOMIC_NO_SYNC: number;
+                    export const ATOMIC_SYNC_FILE: number;
+                    export const ATOMIC_SYNC_ALL: number;
+                    export function writeTextAtomic(path: string, content: string, encoding: string, syncPolicy: number, callback: CompleteCallback, context: any): void;
+                    export function writeAtomic(path: string, content: androidNative.Array<number>, syncPolicy: number, callback: CompleteCallback, context: any): void;
+                    export function writeBufferAtomic(path: string, content: java.nio.ByteBuffer, syncPolicy: number, callback: CompleteCallback, context: any): void;
                     export function append(path: string, content: androidNative.Array<number>, callback: CompleteCallback, context: any);
                     export function appendBuffer(param0: string, param1: java.nio.ByteBuffer, param2: org.nativescript.widgets.Async.CompleteCallback, param3: any): void;
                     export function appendText(path: string, content: string, encoding: string, callback: CompleteCallback, context: any);
+                    export const SYNC_NONE: number;
+                    export const SYNC_ON_FLUSH: number;
+                    export const SYNC_ON_CLOSE: number;
+                    export function openAppendWriter(path: string, flushBytes: number, flushDelay: number, syncPolicy: number): AppendWriter;
+                    export const DEFAULT_CHUNK_SIZE: number;
+                    export function readChunks(path: string, chunkSize: number, credits: number, callback: StreamCallback, context: any): StreamHandle;
+                    export function readLines(path: string, encoding: string, chunkSize: number, credits: number, callback: StreamCallback, context: any): StreamHandle;
+
+                    export class StreamCallback {
+                        constructor(implementation: IStreamCallback);
+                        onChunk(chunk: any, context: any): void;
+                        onEnd(context: any): void;
+                        onError(error: string, context: any): void;
+                    }
+
+                    export interface IStreamCallback {
+                        onChunk(chunk: any, context: any): void;
+                        onEnd(context: any): void;
+                        onError(error: string, context: any): void;
+                    }
+
+                    export class StreamHandle {
+                        request(count: number): void;
+                        cancel(): void;
+                        isDone(): boolean;
+                    }
+
+                    export class TaskHandle {
+                        cancel(): void;
+                        isCancelled(): boolean;
+                    }
+
+                    export class DirectorySize {
+                        getFileCount(): number;
+                        getDirectoryCount(): number;
+                        getSize(): number;
+                        getSizeOnDisk(): number;
+                    }
+
+                    export class Entry {
+                        getPath(): string;
+                        getName(): string;
+                        isDirectory(): boolean;
+                        getSize(): number;
+                        getLastModified(): number;
+                    }
+
+                    export class AppendWriter {
+                        append(content: androidNative.Array<number>): void;
+                        appendBuffer(content: java.nio.ByteBuffer): void;
+                        appendText(content: string, encoding: string): void;
+                        flush(callback: CompleteCallback, context: any): void;
+                        close(callback: CompleteCallback, context: any): void;
+                        getAppendCount(): number;
+                        getWriteCount(): number;
+                        getSyncCount(): number;
+                    }
+                }
+
+                export module Zip {
+                    export function unzip(archive: string, destination: string, parallelism: number, progressCallback: ProgressCallback, callback: CompleteCallback, context: any): File.TaskHandle;
+                    export function zip(source: string, archive: string, level: number, progressCallback: ProgressCallback, callback: CompleteCallback, context: any): File.TaskHandle;
                 }
 
                 export module Http {
@@ -55,27 +172,166 @@
                         public url: string;
                         public method: string;
                         public headers: java.util.ArrayList<KeyValuePair>;
-                        public content: java.nio.ByteBuffer;
+                        public content: string | androidNative.Array<number> | java.nio.ByteBuffer | java.io.File | java.nio.channels.ReadableByteChannel | java.io.InputStream;
+                        public contentLength: number;
+                        getHeader(name: string): string;
                         public timeout: number;
+                        public connectTimeout: number;
+                        public readTimeout: number;
+                        public totalTimeout: number;
+                        public priority: number;
+                        public uploadProgressCallback: org.nativescript.widgets.Async.ProgressCallback;
+                        public downloadProgressCallback: org.nativescript.widgets.Async.ProgressCallback;
+                        public progressInterval: number;
                         public screenWidth: number;
                         public screenHeight: number;
                         public dontFollowRedirects: boolean;
+                        public responseFilePath: string;
+                        public responseChannel: java.nio.channels.WritableByteChannel;
+                        public directBufferResponse: boolean;
+                        public deduplicate: boolean;
+                        public deduplicationHeaders: string[];
+                        public maxRetries: number;
+                        public retryBaseDelay: number;
+                        public retryMaxDelay: number;
+                        public retryStatusCodes: number[];
+                        public hedge: boolean;
+                        public hedgePercentile: number;
+                        public hedgeDelay: number;
+                        public requestCompression: string;
+                        public compressionThreshold: number;
+                    }
+
+                    export class RequestHandle {
+                        cancel(): boolean;
+                        isCancelled(): boolean;
+                        isDone(): boolean;
                     }
 
                     export class RequestResult {
+                        public static ERROR_NONE: number;
+                        public static ERROR_CANCELLED: number;
+                        public static ERROR_TIMEOUT: number;
+                        public static ERROR_CONNECT_TIMEOUT: number;
+                        public static ERROR_READ_TIMEOUT: number;
+                        public static ERROR_FAILED: number;
                         public raw: java.io.ByteArrayOutputStream;
-                        public headers: java.util.ArrayList<KeyValuePair>;
                         public statusCode: number;
                         public statusText: string;
                         public url: string;
-                        public responseAsString: string;
-                        public responseAsImage: android.graphics.Bitmap;
+                        public contentType: string;
                         public error: java.lang.Exception;
+                        public errorCode: number;
+                        public bytesWritten: number;
+                        public fromCache: boolean;
+                        public timing: RequestTiming;
+                        getHeaderFields(): androidNative.Array<string>;
+                        getHeaderCount(): number;
+                        getHeaderName(index: number): string;
+                        getHeaderValue(index: number): string;
+                        getHeader(name: string): string;
+                        getHeaderList(): java.util.ArrayList<KeyValuePair>;
+                        getResponseBytes(): java.nio.ByteBuffer;
+                        getResponseAsString(): string;
+                        getResponseAsImage(): android.graphics.Bitmap;
+                    }
+
+                    export class Engine {
+                        constructor(implementation: IEngine);
+                        open(url: java.net.URL): java.net.HttpURLConnection;
+                        release(connection: java.net.HttpURLConnection, reusable: boolean): void;
+                    }
+
+                    export interface IEngine {
+                        open(url: java.net.URL): java.net.HttpURLConnection;
+                        release(connection: java.net.HttpURLConnection, reusable: boolean): void;
                     }
 
+                    export class SimpleEngine extends Engine {
+                        constructor();
+                    }
+
+                    export class PooledEngine extends Engine {
+                        public static DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST: number;
+                        public static DEFAULT_MAX_IDLE_CONNECTIONS: number;
+                        public static DEFAULT_KEEP_ALIVE_DURATION: number;
+                        constructor();
+                        constructor(maxIdleConnectionsPerHost: number, keepAliveDuration: number);
+                        constructor(maxIdleConnectionsPerHost: number, maxIdleConnections: number, keepAliveDuration: number);
+                        getMaxIdleConnectionsPerHost(): number;
+                        getMaxIdleConnections(): number;
+                        getKeepAliveDuration(): number;
+                        getInUseConnectionCount(host: string): number;
+                        getKeptAliveConnectionCount(host: string): number;
+                    }
+
+                    export class ResponseCache {
+                        public static open(directory: java.io.File, maxSize: number): ResponseCache;
+                        getHitCount(): number;
+                        getMissCount(): number;
+                        getConditionalHitCount(): number;
+                        getStoreCount(): number;
+                        getSize(): number;
+                        getMaxSize(): number;
+                        clear(): void;
+                        close(): void;
+                    }
+
+                    export const DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST: number;
+                    export function setMaxConcurrentRequestsPerHost(value: number): void;
+                    export function getMaxConcurrentRequestsPerHost(): number;
+                    export function getDeduplicationHitCount(): number;
+                    export function getDeduplicationMissCount(): number;
+                    export function getRetryCount(): number;
+                    export function getHedgeCount(): number;
+                    export function getHedgeWinCount(): number;
+
+                    export const TIMING_QUEUE_WAIT: number;
+                    export const TIMING_CONNECT: number;
+                    export const TIMING_SEND: number;
+                    export const TIMING_FIRST_BYTE: number;
+                    export const TIMING_BODY_READ: number;
+                    export const TIMING_TOTAL: number;
+                    export function getTimingHistogram(host: string, stage: number): TimingHistogram;
+                    export function getTimedHosts(): string[];
+                    export function resetTimingHistograms(): void;
+
+                    export class RequestTiming {
+                        public queueWait: number;
+                        public connect: number;
+                        public send: number;
+                        public firstByte: number;
+                        public bodyRead: number;
+                        public decode: number;
+                        public total: number;
+                        public requestBodyBytes: number;
+                        public requestBodyEncodedBytes: number;
+                        public responseBodyBytes: number;
+                        public responseBodyEncodedBytes: number;
+                        public compressionCpuTimeMicros: number;
+                        public decompressionCpuTimeMicros: number;
+                        getRequestCompressionRatio(): number;
+                        getResponseCompressionRatio(): number;
+                    }
+
+                    export class TimingHistogram {
+                        getCount(): number;
+                        getMean(): number;
+                        getMax(): number;
+                        getBucketCount(): number;
+                        getBucketUpperBound(index: number): number;
+                        getBucketValue(index: number): number;
+                        getPercentile(percentile: number): number;
+                    }
+                    export function getActiveRequestCount(host: string): number;
+                    export function getPendingRequestCount(host: string): number;
+                    export function setResponseCache(cache: ResponseCache): void;
+                    export function getResponseCache(): ResponseCache;
+                    export function setEngine(engine: Engine): void;
+                    export function getEngine(): Engine;
                     export function setCookieManager(cookieManager: java.net.CookieManager): void;
                     export function initializeCookieManager(): java.net.CookieManager;
-                    export function MakeRequest(options: RequestOptions, callback: CompleteCallback, context: any);
+                    export function MakeRequest(options: RequestOptions, callback: CompleteCallback, context: any): RequestHandle;
                 }
             }
 
@@ -721,6 +977,12 @@ declare module org {
 				public copyToFile(param0: globalAndroid.content.Context, param1: java.io.File, param2: org.nativescript.widgets.FileHelper.Callback): void;
 				public readBufferSync(param0: globalAndroid.content.Context, param1: org.nativescript.widgets.FileHelper.Callback): java.nio.ByteBuffer;
 				public write(param0: globalAndroid.content.Context, param1: androidNative.Array<number>, param2: org.nativescript.widgets.FileHelper.Callback): void;
+				public writeAtomicSync(param0: globalAndroid.content.Context, param1: androidNative.Array<number>, param2: number, param3: org.nativescript.widgets.FileHelper.Callback): void;
+				public writeAtomic(param0: globalAndroid.content.Context, param1: androidNative.Array<number>, param2: number, param3: org.nativescript.widgets.FileHelper.Callback): void;
+				public writeBufferAtomicSync(param0: globalAndroid.content.Context, param1: java.nio.ByteBuffer, param2: number, param3: org.nativescript.widgets.FileHelper.Callback): void;
+				public writeBufferAtomic(param0: globalAndroid.content.Context, param1: java.nio.ByteBuffer, param2: number, param3: org.nativescript.widgets.FileHelper.Callback): void;
+				public writeTextAtomicSync(param0: globalAndroid.content.Context, param1: string, param2: string, param3: number, param4: org.nativescript.widgets.FileHelper.Callback): void;
+				public writeTextAtomic(param0: globalAndroid.content.Context, param1: string, param2: string, param3: number, param4: org.nativescript.widgets.FileHelper.Callback): void;
 				public getExtension(): string;
 				public readTextSync(param0: globalAndroid.content.Context, param1: string, param2: org.nativescript.widgets.FileHelper.Callback): string;
 				public static fromUri(param0: globalAndroid.content.Context, param1: globalAndroid.net.Uri): org.nativescript.widgets.FileHelper;
@@ -0,0 +1,109 @@
+package org.nativescript.widgetsdemo
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import org.nativescript.widgets.Async
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.InputStreamReader
+import java.io.OutputStreamWriter
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Times Async.File.readText/writeText against the Reader/Writer stack they replaced for UTF-8, on the device.
+ * The async timings include the hop to the file executor and back. The numbers go to logcat under the
+ * FileTextBenchmark tag; the test itself only checks that the text round-trips.
+ */
+@RunWith(AndroidJUnit4::class)
+class FileTextBenchmarkTest {
+    private val file = File(InstrumentationRegistry.getInstrumentation().targetContext.cacheDir, "text-benchmark.txt")
+    private val looper = HandlerThread("FileTextBenchmark").apply { start() }
+
+    @After
+    fun cleanUp() {
+        file.delete()
+        looper.quit()
+    }
+
+    private fun text(chars: Int): String {
+        val text = StringBuilder(chars + 32)
+        while (text.length < chars) {
+            text.append("héllo wörld 😀 abc ")
+        }
+        text.setLength(chars)
+        if (Character.isHighSurrogate(text[chars - 1])) {
+            // a lone surrogate would be written as '?'
+            text.setCharAt(chars - 1, '.')
+        }
+        return text.toString()
+    }
+
+    private fun <T> await(start: (Async.CompleteCallback) -> Unit): T? {
+        val done = CountDownLatch(1)
+        val value = AtomicReference<Any?>()
+        val error = AtomicReference<String?>()
+        Handler(looper.looper).post {
+            start(object : Async.CompleteCallback {
+                override fun onComplete(result: Any?, context: Any?) {
+                    value.set(result)
+                    done.countDown()
+                }
+
+                override fun onError(message: String?, context: Any?) {
+                    error.set(message)
+                    done.countDown()
+                }
+            })
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS))
+        assertNull(error.get())
+        @Suppress("UNCHECKED_CAST")
+        return value.get() as T?
+    }
+
+    private fun bestOf(runs: Int, block: () -> Unit): Double {
+        var best = Long.MAX_VALUE
+        for (i in 0 until runs) {
+            val start = System.nanoTime()
+            block()
+            best = minOf(best, System.nanoTime() - start)
+        }
+        return best / 1e6
+    }
+
+    @Test
+    fun utf8Text_roundTripsAndIsTimed() {
+        for (chars in intArrayOf(1024, 1024 * 1024, 16 * 1024 * 1024)) {
+            val content = text(chars)
+            val runs = if (chars > 1024 * 1024) 3 else 10
+
+            val streamWrite = bestOf(runs) {
+                OutputStreamWriter(FileOutputStream(file), Charsets.UTF_8).use { it.write(content) }
+            }
+            val streamRead = bestOf(runs) {
+                InputStreamReader(FileInputStream(file), Charsets.UTF_8).use { it.readText() }
+            }
+            val asyncWrite = bestOf(runs) {
+                await<Any>({ callback -> Async.File.writeText(file.path, content, "UTF-8", callback, null) })
+            }
+            var read: String? = null
+            val asyncRead = bestOf(runs) {
+                read = await<String>({ callback -> Async.File.readText(file.path, "UTF-8", callback, null) })
+            }
+
+            assertEquals(content, read)
+            Log.i("FileTextBenchmark", "$chars chars: write %.3f -> %.3f ms, read %.3f -> %.3f ms".format(streamWrite, asyncWrite, streamRead, asyncRead))
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.nativescript.widgetsdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import org.nativescript.widgets.Async
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Sharing of identical in-flight requests (RequestOptions.deduplicate) against a local server.
+ */
+@RunWith(AndroidJUnit4::class)
+class HttpDeduplicationTest {
+    private fun options(url: String) = Async.Http.RequestOptions().apply {
+        this.url = url
+        deduplicate = true
+    }
+
+    @Test
+    fun concurrentIdenticalGets_shareOneExchange() {
+        LocalHttpServer { exchange ->
+            exchange.stall(500)
+            exchange.respond(200, "exchange ${exchange.number}".toByteArray())
+        }.use { server ->
+            val hits = Async.Http.getDeduplicationHitCount()
+            val requests = LocalHttpServer.start(*Array(8) { options(server.url("/shared")) })
+
+            for (request in requests) {
+                val result = request.await()
+                assertEquals(200, result.statusCode)
+                assertEquals("exchange 1", result.responseAsString)
+            }
+            assertEquals(1, server.requestCount.get())
+            assertEquals(hits + 7, Async.Http.getDeduplicationHitCount())
+        }
+    }
+
+    @Test
+    fun progress_movesOnWhenTheFirstCallerCancels() {
+        val body = ByteArray(256 * 1024) { it.toByte() }
+        LocalHttpServer { exchange ->
+            exchange.sendHeaders(200, body.size.toLong())
+            exchange.output.write(body, 0, body.size / 2)
+            exchange.output.flush()
+            exchange.stall(1000)
+            exchange.output.write(body, body.size / 2, body.size - body.size / 2)
+            exchange.output.flush()
+        }.use { server ->
+            val firstProgress = CountDownLatch(1)
+            val second = Collections.synchronizedList(ArrayList<Long>())
+            val first = options(server.url("/progress")).apply {
+                downloadProgressCallback = Async.ProgressCallback { _, _, _ -> firstProgress.countDown() }
+            }
+            val other = options(server.url("/progress")).apply {
+                downloadProgressCallback = Async.ProgressCallback { transferred, _, _ -> second.add(transferred) }
+            }
+            val requests = LocalHttpServer.start(first, other)
+
+            assertTrue(firstProgress.await(10, TimeUnit.SECONDS))
+            requests[0].cancel()
+            val result = requests[1].await()
+
+            assertEquals(200, result.statusCode)
+            assertEquals(1, server.requestCount.get())
+            assertTrue(second.isNotEmpty())
+            assertEquals(body.size.toLong(), second.last())
+        }
+    }
+}
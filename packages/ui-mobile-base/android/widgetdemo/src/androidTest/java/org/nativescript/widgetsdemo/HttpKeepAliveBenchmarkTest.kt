@@ -0,0 +1,62 @@
+package org.nativescript.widgetsdemo
+
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import org.nativescript.widgets.Async
+
+/**
+ * Times sequential GETs to a keep-alive local server with the PooledEngine against the SimpleEngine, which
+ * disconnects after every request. The timings come from RequestResult.timing, so the hop back to the looper is
+ * left out. The numbers go to logcat under the HttpKeepAliveBenchmark tag; the test itself only checks that the
+ * pooled engine reuses its connections.
+ */
+@RunWith(AndroidJUnit4::class)
+class HttpKeepAliveBenchmarkTest {
+    private val engine = Async.Http.getEngine()
+
+    @After
+    fun restoreEngine() {
+        Async.Http.setEngine(engine)
+    }
+
+    private class Run(val connections: Int, val total: Double, val connect: Double)
+
+    private fun run(server: LocalHttpServer, engine: Async.Http.Engine, requests: Int): Run {
+        Async.Http.setEngine(engine)
+        val connections = server.connectionCount.get()
+        var total = 0L
+        var connect = 0L
+        for (i in 0 until requests) {
+            val result = LocalHttpServer.request(Async.Http.RequestOptions().apply { url = server.url("/item/$i") })
+            assertEquals(200, result.statusCode)
+            total += result.timing.total
+            connect += maxOf(0L, result.timing.connect)
+        }
+        return Run(server.connectionCount.get() - connections, total.toDouble() / requests, connect.toDouble() / requests)
+    }
+
+    @Test
+    fun sequentialGets_reuseKeptAliveConnections() {
+        val body = ByteArray(1024) { it.toByte() }
+        val requests = 200
+        LocalHttpServer(keepAlive = true) { exchange ->
+            exchange.respond(200, body)
+        }.use { server ->
+            // warm up both paths before measuring
+            run(server, Async.Http.SimpleEngine(), 20)
+            run(server, Async.Http.PooledEngine(), 20)
+
+            val simple = run(server, Async.Http.SimpleEngine(), requests)
+            val pooled = run(server, Async.Http.PooledEngine(), requests)
+
+            Log.i("HttpKeepAliveBenchmark", "$requests GETs: SimpleEngine %d connections, %.2f ms/request (connect %.2f ms), PooledEngine %d connections, %.2f ms/request (connect %.2f ms)".format(
+                simple.connections, simple.total, simple.connect, pooled.connections, pooled.total, pooled.connect))
+            assertTrue("pooled engine opened ${pooled.connections} connections", pooled.connections < requests / 10)
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.nativescript.widgetsdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import org.nativescript.widgets.Async
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Async.Http.ResponseCache against a local server.
+ */
+@RunWith(AndroidJUnit4::class)
+class HttpResponseCacheTest {
+    private val directory = File(InstrumentationRegistry.getInstrumentation().targetContext.cacheDir, "http-cache-test")
+    private lateinit var cache: Async.Http.ResponseCache
+
+    @Before
+    fun openCache() {
+        directory.deleteRecursively()
+        cache = Async.Http.ResponseCache.open(directory, 1024 * 1024)
+        Async.Http.setResponseCache(cache)
+    }
+
+    @After
+    fun closeCache() {
+        Async.Http.setResponseCache(null)
+        cache.close()
+        directory.deleteRecursively()
+    }
+
+    private fun options(url: String) = Async.Http.RequestOptions().apply {
+        this.url = url
+    }
+
+    private fun header(result: Async.Http.RequestResult, name: String): String? {
+        val fields = result.headerFields
+        for (i in fields.indices step 2) {
+            if (fields[i].equals(name, ignoreCase = true)) {
+                return fields[i + 1]
+            }
+        }
+        return null
+    }
+
+    @Test
+    fun encodedResponse_isServedFromTheCacheWithHeadersForTheDecodedBody() {
+        val body = "cached ".repeat(100).toByteArray()
+        val gzipped = ByteArrayOutputStream().also { bytes -> GZIPOutputStream(bytes).use { it.write(body) } }.toByteArray()
+        LocalHttpServer { exchange ->
+            exchange.respond(200, gzipped, "Content-Encoding" to "gzip", "Cache-Control" to "max-age=60")
+        }.use { server ->
+            val network = LocalHttpServer.request(options(server.url("/gzip")))
+            val cached = LocalHttpServer.request(options(server.url("/gzip")))
+
+            assertFalse(network.fromCache)
+            assertTrue(cached.fromCache)
+            assertEquals(1, server.requestCount.get())
+            assertEquals(String(body), cached.responseAsString)
+            assertNull(header(cached, "Content-Encoding"))
+            assertEquals(body.size.toString(), header(cached, "Content-Length"))
+        }
+    }
+
+    @Test
+    fun revalidationAnsweredWithAFullResponse_countsAsAMiss() {
+        LocalHttpServer { exchange ->
+            exchange.respond(200, "version ${exchange.number}".toByteArray(), "ETag" to "\"${exchange.number}\"", "Cache-Control" to "no-cache")
+        }.use { server ->
+            for (i in 1..3) {
+                val result = LocalHttpServer.request(options(server.url("/etag")))
+                assertEquals("version $i", result.responseAsString)
+                assertFalse(result.fromCache)
+            }
+
+            assertEquals(3, server.requestCount.get())
+            assertEquals(3, cache.missCount)
+            assertEquals(0, cache.conditionalHitCount)
+            assertEquals(0, cache.hitCount)
+        }
+    }
+}
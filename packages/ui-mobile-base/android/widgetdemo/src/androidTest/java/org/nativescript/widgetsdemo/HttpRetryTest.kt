@@ -0,0 +1,143 @@
+package org.nativescript.widgetsdemo
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Test
+import org.junit.runner.RunWith
+
+import org.junit.Assert.*
+import org.nativescript.widgets.Async
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.util.Collections
+
+/**
+ * Retries of Async.Http against a local server that stalls or fails on purpose.
+ */
+@RunWith(AndroidJUnit4::class)
+class HttpRetryTest {
+    private fun options(url: String) = Async.Http.RequestOptions().apply {
+        this.url = url
+        maxRetries = 2
+        retryBaseDelay = 10
+        readTimeout = 500
+    }
+
+    @Test
+    fun stalledResponse_isRetriedAfterTheReadTimeout() {
+        LocalHttpServer { exchange ->
+            if (exchange.number == 1) {
+                exchange.stall(3000)
+            }
+            exchange.respond(200, "attempt ${exchange.number}".toByteArray())
+        }.use { server ->
+            val retries = Async.Http.getRetryCount()
+            val result = LocalHttpServer.request(options(server.url("/stall")))
+
+            assertEquals(200, result.statusCode)
+            assertEquals("attempt 2", result.responseAsString)
+            assertEquals(2, server.requestCount.get())
+            assertEquals(retries + 1, Async.Http.getRetryCount())
+        }
+    }
+
+    @Test
+    fun retryableStatus_isRetriedUntilItSucceeds() {
+        LocalHttpServer { exchange ->
+            exchange.respond(if (exchange.number < 3) 503 else 200, "attempt ${exchange.number}".toByteArray())
+        }.use { server ->
+            val result = LocalHttpServer.request(options(server.url("/flaky")))
+
+            assertEquals(200, result.statusCode)
+            assertEquals(3, server.requestCount.get())
+        }
+    }
+
+    @Test
+    fun tlsFailure_isNotRetried() {
+        // answers the ClientHello with plain HTTP, so the handshake fails the same way every time
+        ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")).use { server ->
+            val acceptor = Thread {
+                while (!server.isClosed) {
+                    try {
+                        server.accept().use { socket ->
+                            socket.getOutputStream().write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".toByteArray())
+                            socket.getOutputStream().flush()
+                            Thread.sleep(100)
+                        }
+                    } catch (e: Exception) {
+                        return@Thread
+                    }
+                }
+            }
+            acceptor.isDaemon = true
+            acceptor.start()
+
+            val retries = Async.Http.getRetryCount()
+            val result = LocalHttpServer.request(options("https://127.0.0.1:${server.localPort}/"))
+
+            assertEquals(Async.Http.RequestResult.ERROR_FAILED, result.errorCode)
+            assertTrue(result.error is javax.net.ssl.SSLException)
+            assertEquals(retries, Async.Http.getRetryCount())
+        }
+    }
+
+    @Test
+    fun stalledUpload_isReportedAsAReadTimeout() {
+        // accepts the connection and never reads from it, so the body write blocks once the socket buffers are full
+        ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")).use { server ->
+            val accepted = ArrayList<java.net.Socket>()
+            val acceptor = Thread {
+                try {
+                    while (true) {
+                        accepted.add(server.accept())
+                    }
+                } catch (e: Exception) {
+                    accepted.forEach { it.close() }
+                }
+            }
+            acceptor.isDaemon = true
+            acceptor.start()
+
+            val options = options("http://127.0.0.1:${server.localPort}/upload").apply {
+                method = "POST"
+                content = ByteArray(32 * 1024 * 1024)
+                maxRetries = 0
+            }
+            val result = LocalHttpServer.request(options)
+
+            assertEquals(Async.Http.RequestResult.ERROR_READ_TIMEOUT, result.errorCode)
+            assertTrue(result.error is java.net.SocketTimeoutException)
+        }
+    }
+
+    @Test
+    fun downloadProgress_neverGoesBackwardsAcrossRetries() {
+        val body = ByteArray(256 * 1024) { it.toByte() }
+        LocalHttpServer { exchange ->
+            if (exchange.number == 1) {
+                // half of the body, then nothing until the client times out
+                exchange.sendHeaders(200, body.size.toLong())
+                exchange.output.write(body, 0, body.size / 2)
+                exchange.output.flush()
+                exchange.stall(3000)
+            } else {
+                exchange.respond(200, body)
+            }
+        }.use { server ->
+            val reported = Collections.synchronizedList(ArrayList<Long>())
+            val options = options(server.url("/partial")).apply {
+                progressInterval = 0
+                downloadProgressCallback = Async.ProgressCallback { transferred, _, _ -> reported.add(transferred) }
+            }
+            val result = LocalHttpServer.request(options)
+
+            assertEquals(200, result.statusCode)
+            assertEquals(2, server.requestCount.get())
+            assertTrue(reported.isNotEmpty())
+            for (i in 1 until reported.size) {
+                assertTrue("progress went from ${reported[i - 1]} to ${reported[i]}", reported[i] >= reported[i - 1])
+            }
+            assertEquals(body.size.toLong(), reported.last())
+        }
+    }
+}
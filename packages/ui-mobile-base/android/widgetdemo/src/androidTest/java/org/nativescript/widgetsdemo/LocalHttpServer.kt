@@ -0,0 +1,217 @@
+package org.nativescript.widgetsdemo
+
+import android.os.Handler
+import android.os.HandlerThread
+import org.nativescript.widgets.Async
+import java.io.BufferedInputStream
+import java.io.Closeable
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, standing in for a real backend in the Async.Http tests.
+ * By default every connection serves a single exchange and is closed afterwards, which keeps the request count
+ * exact; with keepAlive a connection serves exchanges until the client closes it.
+ */
+class LocalHttpServer(private val keepAlive: Boolean = false, private val handler: (Exchange) -> Unit) : Closeable {
+    class Exchange(
+        val number: Int,
+        val method: String,
+        val path: String,
+        val headers: Map<String, String>,
+        private val keepAlive: Boolean,
+        socket: Socket,
+    ) {
+        val output: OutputStream = socket.getOutputStream()
+
+        fun respond(status: Int, body: ByteArray, vararg headers: Pair<String, String>) {
+            // one write, so that the client's delayed ACK does not hold back the body
+            output.write(head(status, body.size.toLong(), headers) + body)
+            output.flush()
+        }
+
+        fun sendHeaders(status: Int, contentLength: Long, vararg headers: Pair<String, String>) {
+            output.write(head(status, contentLength, headers))
+            output.flush()
+        }
+
+        private fun head(status: Int, contentLength: Long, headers: Array<out Pair<String, String>>): ByteArray {
+            val head = StringBuilder("HTTP/1.1 $status Status\r\n")
+            head.append("Content-Length: ").append(contentLength).append("\r\n")
+            if (!keepAlive) {
+                head.append("Connection: close\r\n")
+            }
+            for ((name, value) in headers) {
+                head.append(name).append(": ").append(value).append("\r\n")
+            }
+            head.append("\r\n")
+            return head.toString().toByteArray(Charsets.ISO_8859_1)
+        }
+
+        /**
+         * Holds the response back, like a stalled backend.
+         */
+        fun stall(millis: Long) {
+            Thread.sleep(millis)
+        }
+    }
+
+    private val server = ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))
+    private val acceptor = Thread({ acceptLoop() }, "LocalHttpServer")
+    val requestCount = AtomicInteger()
+    val connectionCount = AtomicInteger()
+
+    val port: Int get() = server.localPort
+
+    fun url(path: String) = "http://127.0.0.1:$port$path"
+
+    init {
+        acceptor.isDaemon = true
+        acceptor.start()
+    }
+
+    private fun acceptLoop() {
+        while (!server.isClosed) {
+            val socket = try {
+                server.accept()
+            } catch (e: Exception) {
+                return
+            }
+            val worker = Thread { serve(socket) }
+            worker.isDaemon = true
+            worker.start()
+        }
+    }
+
+    private fun serve(socket: Socket) {
+        connectionCount.incrementAndGet()
+        socket.use {
+            try {
+                socket.tcpNoDelay = true
+                val input = BufferedInputStream(socket.getInputStream())
+                do {
+                    val requestLine = readLine(input) ?: return
+                    val headers = HashMap<String, String>()
+                    while (true) {
+                        val line = readLine(input) ?: return
+                        if (line.isEmpty()) break
+                        val colon = line.indexOf(':')
+                        if (colon > 0) {
+                            headers[line.substring(0, colon).trim().lowercase()] = line.substring(colon + 1).trim()
+                        }
+                    }
+                    headers["content-length"]?.toLongOrNull()?.let { input.skipFully(it) }
+
+                    val parts = requestLine.split(' ')
+                    handler(Exchange(requestCount.incrementAndGet(), parts[0], parts.getOrElse(1) { "/" }, headers, keepAlive, socket))
+                } while (keepAlive)
+            } catch (e: Exception) {
+                // the client gave up on the exchange, which is what several tests provoke
+            }
+        }
+    }
+
+    private fun readLine(input: InputStream): String? {
+        val line = StringBuilder()
+        while (true) {
+            val c = input.read()
+            if (c == -1) return if (line.isEmpty()) null else line.toString()
+            if (c == '\n'.code) return line.toString().trimEnd('\r')
+            line.append(c.toChar())
+        }
+    }
+
+    private fun InputStream.skipFully(count: Long) {
+        var remaining = count
+        while (remaining > 0) {
+            val skipped = skip(remaining)
+            if (skipped <= 0) {
+                if (read() == -1) return
+                remaining--
+            } else {
+                remaining -= skipped
+            }
+        }
+    }
+
+    override fun close() {
+        server.close()
+    }
+
+    /**
+     * A request started on the looper thread, as Async.Http requires.
+     */
+    class PendingRequest(val options: Async.Http.RequestOptions) {
+        private val done = CountDownLatch(1)
+        private val result = AtomicReference<Async.Http.RequestResult>()
+        private val started = CountDownLatch(1)
+        lateinit var handle: Async.Http.RequestHandle
+            private set
+
+        internal fun start() {
+            handle = Async.Http.MakeRequest(options, object : Async.CompleteCallback {
+                override fun onComplete(value: Any?, context: Any?) {
+                    result.set(value as Async.Http.RequestResult?)
+                    done.countDown()
+                }
+
+                override fun onError(error: String?, context: Any?) {
+                    done.countDown()
+                }
+            }, null)
+            started.countDown()
+        }
+
+        fun cancel() {
+            started.await()
+            handle.cancel()
+        }
+
+        fun await(timeoutSeconds: Long = 30): Async.Http.RequestResult {
+            if (!done.await(timeoutSeconds, TimeUnit.SECONDS)) {
+                throw AssertionError("request to ${options.url} did not complete")
+            }
+            return result.get() ?: throw AssertionError("request to ${options.url} failed without a result")
+        }
+    }
+
+    companion object {
+        private val looper: HandlerThread by lazy {
+            HandlerThread("LocalHttpServerClient").apply { start() }
+        }
+
+        /**
+         * Starts the requests together in one pass of the looper, so that they are in flight at the same time.
+         */
+        fun start(vararg options: Async.Http.RequestOptions): List<PendingRequest> {
+            val pending = options.map { PendingRequest(it) }
+            onLooper {
+                for (request in pending) {
+                    request.start()
+                }
+            }
+            return pending
+        }
+
+        /**
+         * Makes the request from the looper thread and waits for its result.
+         */
+        fun request(options: Async.Http.RequestOptions, timeoutSeconds: Long = 30): Async.Http.RequestResult {
+            return start(options)[0].await(timeoutSeconds)
+        }
+
+        /**
+         * Runs the block on the looper thread that delivers request callbacks.
+         */
+        fun onLooper(block: () -> Unit) {
+            Handler(looper.looper).post(block)
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.nativescript.widgetsdemo
+
+import org.junit.Test
+
+import org.junit.Assert.*
+import org.nativescript.widgets.Async
+import java.lang.management.ManagementFactory
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.TreeMap
+
+/**
+ * Measures what reading the response headers costs, compared to the map based approach it replaced.
+ */
+class ResponseHeadersUnitTest {
+    private class FakeConnection(count: Int) : HttpURLConnection(URL("http://localhost/")) {
+        private val keys = arrayOfNulls<String>(count + 1)
+        private val values = arrayOfNulls<String>(count + 1)
+
+        init {
+            values[0] = "HTTP/1.1 200 OK"
+            for (i in 1..count) {
+                keys[i] = "X-Header-$i"
+                values[i] = "value-$i"
+            }
+        }
+
+        override fun connect() {}
+        override fun disconnect() {}
+        override fun usingProxy() = false
+        override fun getHeaderFieldKey(n: Int) = if (n < keys.size) keys[n] else null
+        override fun getHeaderField(n: Int) = if (n < values.size) values[n] else null
+
+        // like the platform implementation, the map is built on every call
+        override fun getHeaderFields(): Map<String?, List<String>> {
+            val map = TreeMap<String?, List<String>>(nullsFirst(String.CASE_INSENSITIVE_ORDER))
+            for (i in keys.indices) {
+                map[keys[i]] = listOf(values[i]!!)
+            }
+            return map
+        }
+    }
+
+    private val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+
+    private fun allocatedBytesPerRun(runs: Int, block: () -> Unit): Long {
+        for (i in 0 until runs) block()
+        val start = threadBean.getThreadAllocatedBytes(Thread.currentThread().id)
+        for (i in 0 until runs) block()
+        return (threadBean.getThreadAllocatedBytes(Thread.currentThread().id) - start) / runs
+    }
+
+    @Test
+    fun headerFields_areReturnedAsOneFlatArray() {
+        val result = Async.Http.RequestResult()
+        result.getHeaders(FakeConnection(30))
+
+        val fields = result.getHeaderFields()
+        assertEquals(60, fields.size)
+        assertEquals("X-Header-1", fields[0])
+        assertEquals("value-30", fields[59])
+        assertEquals("value-7", result.getHeader("x-header-7"))
+    }
+
+    @Test
+    fun headerFields_allocateLessThanTheHeaderMap() {
+        val connection = FakeConnection(30)
+
+        val mapBytes = allocatedBytesPerRun(10000) {
+            val headers = ArrayList<Async.Http.KeyValuePair>()
+            for ((key, list) in connection.headerFields) {
+                for (value in list) {
+                    headers.add(Async.Http.KeyValuePair(key, value))
+                }
+            }
+        }
+        val flatBytes = allocatedBytesPerRun(10000) {
+            val result = Async.Http.RequestResult()
+            result.getHeaders(connection)
+            result.getHeaderFields()
+        }
+
+        println("30 headers: map + KeyValuePair $mapBytes bytes, flat array $flatBytes bytes")
+        assertTrue("flat array allocated $flatBytes bytes, map $mapBytes bytes", flatBytes < mapBytes)
+    }
+}
@@ -8,59 +8,122 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Debug;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Base64;
 import android.util.Log;
+import android.view.Choreographer;
+
+import org.nativescript.widgets.image.Cache;
+import org.nativescript.widgets.image.DiskLruCache;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.PriorityQueue;
 import java.util.Map;
 import java.util.Stack;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 public class Async {
 	static final String TAG = "Async";
 	static ThreadPoolExecutor executor = null;
 
-	static ThreadPoolExecutor threadPoolExecutor() {
+	/*
+	 * Priority classes for work queued on the shared executor. Tasks of a more urgent class are
+	 * picked before less urgent ones, tasks of the same class run in submission order.
+	 */
+	public static final int PRIORITY_USER_BLOCKING = 0;
+	public static final int PRIORITY_DEFAULT = 1;
+	public static final int PRIORITY_BACKGROUND = 2;
+
+	private static final QueueMetrics[] queueMetrics = {new QueueMetrics(), new QueueMetrics(), new QueueMetrics()};
+
+	static synchronized ThreadPoolExecutor threadPoolExecutor() {
 		if (executor == null) {
 			int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
 			ThreadFactory backgroundPriorityThreadFactory = new PriorityThreadFactory(android.os.Process.THREAD_PRIORITY_BACKGROUND);
 
-			executor = new ThreadPoolExecutor(
-				NUMBER_OF_CORES * 2,
+			executor = new PriorityExecutor(
 				NUMBER_OF_CORES * 2,
-				60L,
-				TimeUnit.SECONDS,
-				new LinkedBlockingQueue<Runnable>(),
 				backgroundPriorityThreadFactory
 			);
 		}
@@ -68,12 +131,554 @@ public class Async {
 		return executor;
 	}
 
+	/**
+	 * Returns the number of tasks waiting for a thread on the shared executor.
+	 */
+	public static int getQueueDepth() {
+		return threadPoolExecutor().getQueue().size();
+	}
+
+	/**
+	 * Returns the average time in milliseconds tasks of the given priority class waited for a thread.
+	 */
+	public static long getAverageWaitTime(int priority) {
+		return queueMetrics[clampPriority(priority)].getAverageWaitTime();
+	}
+
+	/**
+	 * Returns the longest time in milliseconds a task of the given priority class waited for a thread.
+	 */
+	public static long getMaxWaitTime(int priority) {
+		return queueMetrics[clampPriority(priority)].getMaxWaitTime();
+	}
+
+	public static long getStartedTaskCount(int priority) {
+		return queueMetrics[clampPriority(priority)].getCount();
+	}
+
+	public static void resetQueueMetrics() {
+		for (QueueMetrics metrics : queueMetrics) {
+			metrics.reset();
+		}
+	}
+
+	static int clampPriority(int priority) {
+		return Math.max(PRIORITY_USER_BLOCKING, Math.min(PRIORITY_BACKGROUND, priority));
+	}
+
+	static class QueueMetrics {
+		private long count;
+		private long totalWait;
+		private long maxWait;
+
+		synchronized void record(long wait) {
+			count++;
+			totalWait += wait;
+			if (wait > maxWait) {
+				maxWait = wait;
+			}
+		}
+
+		synchronized long getCount() {
+			return count;
+		}
+
+		synchronized long getAverageWaitTime() {
+			return count > 0 ? totalWait / count : 0;
+		}
+
+		synchronized long getMaxWaitTime() {
+			return maxWait;
+		}
+
+		synchronized void reset() {
+			count = 0;
+			totalWait = 0;
+			maxWait = 0;
+		}
+	}
+
+	/**
+	 * A task queued with a priority class. The sequence number keeps tasks of the same class in FIFO order.
+	 */
+	static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+		private static final AtomicLong nextSequence = new AtomicLong();
+
+		final Runnable runnable;
+		final int priority;
+		final long sequence;
+		final long enqueuedAt;
+
+		PrioritizedRunnable(Runnable runnable, int priority) {
+			this.runnable = runnable;
+			this.priority = clampPriority(priority);
+			this.sequence = nextSequence.getAndIncrement();
+			this.enqueuedAt = SystemClock.elapsedRealtime();
+		}
+
+		@Override
+		public void run() {
+			queueMetrics[priority].record(SystemClock.elapsedRealtime() - enqueuedAt);
+			runnable.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedRunnable other) {
+			if (priority != other.priority) {
+				return priority < other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	static class PriorityExecutor extends ThreadPoolExecutor {
+		PriorityExecutor(int threadCount, ThreadFactory threadFactory) {
+			super(threadCount, threadCount, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			// the priority queue can only order prioritized tasks
+			super.execute(command instanceof PrioritizedRunnable ? command : new PrioritizedRunnable(command, PRIORITY_DEFAULT));
+		}
+	}
+
 	public interface CompleteCallback {
 		void onComplete(Object result, Object tag);
 
 		void onError(String error, Object tag);
 	}
 
+	private static volatile boolean frameCoalescing;
+	private static volatile long frameBudgetNanos = 4000000;
+
+	/**
+	 * When enabled, completions headed for the main thread are queued and run together once per Choreographer frame
+	 * instead of as one looper message each. Delivery on other loopers is not affected.
+	 */
+	public static void setFrameCoalescingEnabled(boolean value) {
+		frameCoalescing = value;
+	}
+
+	public static boolean isFrameCoalescingEnabled() {
+		return frameCoalescing;
+	}
+
+	/**
+	 * The time a frame may spend running completions; whatever is left over runs on the next frame.
+	 */
+	public static void setFrameBudget(long milliseconds) {
+		frameBudgetNanos = Math.max(1, milliseconds) * 1000000;
+	}
+
+	public static long getFrameBudget() {
+		return frameBudgetNanos / 1000000;
+	}
+
+	public static long getCompletionBatchCount() {
+		return completionDispatcher.batches;
+	}
+
+	public static long getCompletionDeliveredCount() {
+		return completionDispatcher.delivered;
+	}
+
+	public static long getMaxCompletionBatchSize() {
+		return completionDispatcher.maxBatchSize;
+	}
+
+	/**
+	 * The number of frames that ran out of budget and carried completions over to the next frame.
+	 */
+	public static long getCompletionCarryOverCount() {
+		return completionDispatcher.carryOvers;
+	}
+
+	/**
+	 * The average time, in milliseconds, from a task finishing to its completion running on the main thread.
+	 */
+	public static double getAverageCompletionLatency() {
+		long delivered = completionDispatcher.delivered;
+		return delivered == 0 ? 0 : (double) completionDispatcher.totalLatency / delivered;
+	}
+
+	public static long getMaxCompletionLatency() {
+		return completionDispatcher.maxLatency;
+	}
+
+	public static void resetCompletionMetrics() {
+		completionDispatcher.resetMetrics();
+	}
+
+	private static final CompletionDispatcher completionDispatcher = new CompletionDispatcher();
+
+	/**
+	 * Runs a completion on the handler's thread, batched per frame when frame coalescing is on and the handler is the main one.
+	 * A null handler runs the completion right away on the calling thread.
+	 */
+	static void deliver(android.os.Handler handler, Runnable completion) {
+		if (handler == null) {
+			completion.run();
+		} else if (frameCoalescing && handler.getLooper() == Looper.getMainLooper()) {
+			completionDispatcher.enqueue(completion);
+		} else {
+			handler.post(completion);
+		}
+	}
+
+	static class CompletionDispatcher implements Runnable, Choreographer.FrameCallback {
+		private static class Pending {
+			final Runnable runnable;
+			final long enqueuedAt;
+
+			Pending(Runnable runnable) {
+				this.runnable = runnable;
+				this.enqueuedAt = SystemClock.uptimeMillis();
+			}
+		}
+
+		private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private android.os.Handler mainHandler;
+
+		// only written on the main thread
+		volatile long batches;
+		volatile long delivered;
+		volatile long maxBatchSize;
+		volatile long carryOvers;
+		volatile long totalLatency;
+		volatile long maxLatency;
+
+		void enqueue(Runnable runnable) {
+			queue.offer(new Pending(runnable));
+			if (scheduled.compareAndSet(false, true)) {
+				mainHandler().post(this);
+			}
+		}
+
+		private synchronized android.os.Handler mainHandler() {
+			if (mainHandler == null) {
+				mainHandler = new android.os.Handler(Looper.getMainLooper());
+			}
+			return mainHandler;
+		}
+
+		@Override
+		public void run() {
+			// the Choreographer has to be obtained on the main thread
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		/**
+		 * Runs the queued completions until the frame budget is spent. A completion that throws propagates out of here
+		 * just like it would from a plain Handler.post(), but only after the rest of the queue has been rescheduled.
+		 */
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			long deadline = System.nanoTime() + frameBudgetNanos;
+			long now = SystemClock.uptimeMillis();
+			int count = 0;
+			try {
+				Pending pending;
+				while ((pending = queue.poll()) != null) {
+					long latency = now - pending.enqueuedAt;
+					totalLatency += latency;
+					if (latency > maxLatency) {
+						maxLatency = latency;
+					}
+					count++;
+
+					pending.runnable.run();
+
+					if (System.nanoTime() >= deadline && !queue.isEmpty()) {
+						carryOvers++;
+						break;
+					}
+				}
+			} finally {
+				batches++;
+				delivered += count;
+				if (count > maxBatchSize) {
+					maxBatchSize = count;
+				}
+
+				reschedule();
+			}
+		}
+
+		private void reschedule() {
+			if (!queue.isEmpty()) {
+				Choreographer.getInstance().postFrameCallback(this);
+				return;
+			}
+
+			scheduled.set(false);
+			// an enqueue may have seen the flag still set just before it was cleared
+			if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+				Choreographer.getInstance().postFrameCallback(this);
+			}
+		}
+
+		void resetMetrics() {
+			batches = 0;
+			delivered = 0;
+			maxBatchSize = 0;
+			carryOvers = 0;
+			totalLatency = 0;
+			maxLatency = 0;
+		}
+	}
+
+	public interface ProgressCallback {
+		/**
+		 * @param total the expected number of bytes, or -1 if it is not known
+		 */
+		void onProgress(long transferred, long total, Object tag);
+	}
+
+	/**
+	 * Delivers progress to a {@link ProgressCallback} on the handler's thread, coalescing updates so that
+	 * at most one event is posted per interval. The reporter posts itself, so updates allocate nothing;
+	 * a pending event always carries the latest values when it runs.
+	 */
+	static class ProgressReporter implements Runnable {
+		private final ProgressCallback callback;
+		private final Object tag;
+		private final android.os.Handler handler;
+		private final long interval;
+		private final AtomicBoolean posted = new AtomicBoolean();
+		private volatile long transferred;
+		private volatile long total = -1;
+		private long lastPostedAt;
+
+		ProgressReporter(ProgressCallback callback, Object tag, android.os.Handler handler, long interval) {
+			this.callback = callback;
+			this.tag = tag;
+			this.handler = handler;
+			this.interval = interval;
+		}
+
+		static ProgressReporter create(ProgressCallback callback, Object tag, android.os.Handler handler, long interval) {
+			return callback != null ? new ProgressReporter(callback, tag, handler, interval) : null;
+		}
+
+		void setTotal(long total) {
+			this.total = total;
+		}
+
+		/**
+		 * Called from the transferring thread only. Progress never goes backwards: a transfer that is restarted,
+		 * like a retried request, is held at the furthest point reached until it gets past it.
+		 */
+		void update(long transferred) {
+			if (transferred <= this.transferred) {
+				return;
+			}
+			this.transferred = transferred;
+			long now = SystemClock.uptimeMillis();
+			if (now - lastPostedAt >= interval && posted.compareAndSet(false, true)) {
+				lastPostedAt = now;
+				post();
+			}
+		}
+
+		/**
+		 * Makes sure the final values are delivered, even if they were throttled.
+		 */
+		void flush() {
+			if (posted.compareAndSet(false, true)) {
+				post();
+			}
+		}
+
+		// a null handler delivers right away on the calling thread, like Async.deliver
+		private void post() {
+			if (handler == null) {
+				run();
+			} else {
+				handler.post(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			posted.set(false);
+			callback.onProgress(transferred, total, tag);
+		}
+	}
+
+	static class ProgressInputStream extends FilterInputStream {
+		private final ProgressReporter reporter;
+		private long count;
+
+		ProgressInputStream(InputStream in, ProgressReporter reporter) {
+			super(in);
+			this.reporter = reporter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+			if (value != -1) {
+				reporter.update(++count);
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				count += read;
+				reporter.update(count);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			if (skipped > 0) {
+				count += skipped;
+				reporter.update(count);
+			}
+			return skipped;
+		}
+	}
+
+	/**
+	 * A few reusable 64 KB direct buffers, for HTTP responses of unknown length and for channel copies, so that
+	 * small jobs do not each pay for a fresh native allocation.
+	 */
+	static final class DirectBufferPool {
+		static final int BUFFER_SIZE = 64 * 1024;
+		private static final int MAX_POOLED = 4;
+		private static final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+		static ByteBuffer acquire() {
+			synchronized (pool) {
+				ByteBuffer buffer = pool.poll();
+				if (buffer != null) {
+					buffer.clear();
+					return buffer;
+				}
+			}
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+
+		static void release(ByteBuffer buffer) {
+			synchronized (pool) {
+				if (pool.size() < MAX_POOLED) {
+					pool.push(buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The heap counterpart of {@link DirectBufferPool}, for streams that can only read into and write from arrays.
+	 */
+	static final class ByteArrayPool {
+		static final int BUFFER_SIZE = 64 * 1024;
+		private static final int MAX_POOLED = 4;
+		private static final ArrayDeque<byte[]> pool = new ArrayDeque<byte[]>();
+
+		static byte[] acquire() {
+			synchronized (pool) {
+				byte[] buffer = pool.poll();
+				if (buffer != null) {
+					return buffer;
+				}
+			}
+			return new byte[BUFFER_SIZE];
+		}
+
+		static void release(byte[] buffer) {
+			synchronized (pool) {
+				if (pool.size() < MAX_POOLED) {
+					pool.push(buffer);
+				}
+			}
+		}
+	}
+
+	static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int value = super.read();
+			if (value != -1) {
+				count++;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			out.write(value);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			count += length;
+		}
+	}
+
+	static class ProgressOutputStream extends FilterOutputStream {
+		private final ProgressReporter reporter;
+		private long count;
+
+		ProgressOutputStream(OutputStream out, ProgressReporter reporter) {
+			super(out);
+			this.reporter = reporter;
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			out.write(value);
+			reporter.update(++count);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			// FilterOutputStream would write byte by byte
+			out.write(buffer, offset, length);
+			count += length;
+			reporter.update(count);
+		}
+	}
+
 	static class PriorityThreadFactory implements ThreadFactory {
 		private final int mThreadPriority;
 
@@ -112,7 +717,7 @@ public class Async {
 				public void run() {
 					final LoadImageFromResourceTask task = new LoadImageFromResourceTask(context, requestId, callback);
 					final Bitmap result = task.doInBackground(name);
-					mHandler.post(new Runnable() {
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -129,7 +734,7 @@ public class Async {
 				public void run() {
 					final LoadImageFromFileTask task = new LoadImageFromFileTask(requestId, callback);
 					final Bitmap result = task.doInBackground(fileName);
-					mHandler.post(new Runnable() {
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -146,7 +751,7 @@ public class Async {
 				public void run() {
 					final LoadImageFromBase64StringTask task = new LoadImageFromBase64StringTask(requestId, callback);
 					final Bitmap result = task.doInBackground(source);
-					mHandler.post(new Runnable() {
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -163,7 +768,7 @@ public class Async {
 				public void run() {
 					final DownloadImageTask task = new DownloadImageTask(callback, context);
 					final Bitmap result = task.doInBackground(url);
-					mHandler.post(new Runnable() {
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -320,331 +925,4360 @@ public class Async {
 			return cookieManager;
     }
 
-		public static void MakeRequest(final RequestOptions options, final CompleteCallback callback, final Object context) {
+		/**
+		 * Queues the request and returns a handle that can cancel it. Cancelled and timed out requests
+		 * still complete through the callback, with RequestResult.errorCode telling the two apart.
+		 */
+		public static RequestHandle MakeRequest(final RequestOptions options, final CompleteCallback callback, final Object context) {
 			if (cookieManager == null) {
 				initializeCookieManager();
 			}
 
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			final RequestHandle handle = new RequestHandle(options.url);
+			final HttpRequestTask task = new HttpRequestTask(callback, context, handle);
+
+			String key = options.deduplicate ? SharedRequest.keyOf(options) : null;
+			if (key != null) {
+				SharedRequest.join(key, options, handle, task, mHandler, context);
+			} else {
+				task.uploadProgress = ProgressReporter.create(options.uploadProgressCallback, context, mHandler, options.progressInterval);
+				task.downloadProgress = ProgressReporter.create(options.downloadProgressCallback, context, mHandler, options.progressInterval);
+				execute(options, handle, task, mHandler);
+			}
+
+			if (options.totalTimeout > 0) {
+				handle.scheduleDeadline(options.totalTimeout);
+			}
+
+			return handle;
+		}
+
+		/**
+		 * Runs the request once, or through a {@link RetryingRequest} when the options ask for retries or hedging.
+		 */
+		static void execute(RequestOptions options, RequestHandle handle, HttpRequestTask task, android.os.Handler handler) {
+			if (RetryingRequest.applies(options)) {
+				new RetryingRequest(options, handle, task).start(handler);
+			} else {
+				submit(options, handle, task, handler);
+			}
+		}
+
+		/**
+		 * Queues the task behind the per-host limit. The result is delivered through the handler, or on the worker thread if it is null.
+		 */
+		static void submit(final RequestOptions options, final RequestHandle handle, final HttpRequestTask task, final android.os.Handler handler) {
+			final String host = HostScheduler.hostKey(options.url);
+			PrioritizedRunnable runnable = new PrioritizedRunnable(new Runnable() {
 				@Override
 				public void run() {
-					final HttpRequestTask task = new HttpRequestTask(callback, context);
-					final RequestResult result = task.doInBackground(options);
-					mHandler.post(new Runnable() {
-						@Override
-						public void run() {
-							task.onPostExecute(result);
+					try {
+						if (!handle.start()) {
+							// cancelled or timed out while waiting in the queue
+							return;
 						}
-					});
+						final RequestResult result = handle.finish(task.doInBackground(options));
+						deliver(handler, new Runnable() {
+							@Override
+							public void run() {
+								task.onPostExecute(result);
+							}
+						});
+					} finally {
+						hostScheduler.release(host);
+					}
 				}
-			});
+			}, options.priority);
+			task.host = host;
+			task.enqueuedAt = runnable.enqueuedAt;
+
+			handle.queue(runnable, host, handler, task);
+			hostScheduler.submit(host, runnable);
 		}
 
-		public static class KeyValuePair {
-			public String key;
-			public String value;
+		/**
+		 * Implemented by whatever runs the actual attempts for a handle that was never queued itself.
+		 */
+		interface Waitable {
+			/**
+			 * Called when the waiting handle is cancelled or times out before a result was delivered to it.
+			 */
+			void leave(RequestHandle waiter);
+		}
 
-			public KeyValuePair(String key, String value) {
-				this.key = key;
-				this.value = value;
-			}
+		public static long getRetryCount() {
+			return RetryingRequest.retryCount.get();
 		}
 
-		public static class RequestOptions {
-			public String url;
-			public String method;
-			public ArrayList<KeyValuePair> headers;
-			public Object content;
-			public int timeout = -1;
-			public int screenWidth = -1;
-			public int screenHeight = -1;
-			public boolean dontFollowRedirects = false;
+		public static long getHedgeCount() {
+			return RetryingRequest.hedgeCount.get();
+		}
 
-			public void addHeaders(HttpURLConnection connection) {
-				if (this.headers == null) {
-					return;
-				}
-				boolean hasAcceptHeader = false;
+		/**
+		 * The number of hedged attempts that finished before the attempt they were started for.
+		 */
+		public static long getHedgeWinCount() {
+			return RetryingRequest.hedgeWinCount.get();
+		}
 
-				for (KeyValuePair pair : this.headers) {
-					String key = pair.key;
-					connection.addRequestProperty(key, pair.value);
-					if (key.toLowerCase().contentEquals("accept-encoding")) {
-						hasAcceptHeader = true;
-					}
+		/**
+		 * Runs a request as a series of attempts, each with its own cancellable handle. Failed attempts are retried after an
+		 * exponential backoff with full jitter; with hedging, a second attempt is started when the first takes longer than
+		 * the host's usual response time, and whichever finishes first wins while the other is cancelled.
+		 */
+		static class RetryingRequest implements CompleteCallback, Waitable {
+			static final AtomicLong retryCount = new AtomicLong();
+			static final AtomicLong hedgeCount = new AtomicLong();
+			static final AtomicLong hedgeWinCount = new AtomicLong();
+
+			// hedging waits until the host has enough history for a meaningful percentile
+			private static final int MIN_HEDGE_SAMPLES = 20;
+			private static final int[] DEFAULT_RETRY_STATUS_CODES = {408, 429, 502, 503, 504};
+
+			private final RequestOptions options;
+			private final RequestHandle handle;
+			private final HttpRequestTask task;
+			private final ArrayList<RequestHandle> attempts = new ArrayList<RequestHandle>(2);
+			private RequestHandle hedgedAttempt;
+			private ScheduledFuture<?> timer;
+			private int retries;
+			private boolean done;
+
+			RetryingRequest(RequestOptions options, RequestHandle handle, HttpRequestTask task) {
+				this.options = options;
+				this.handle = handle;
+				this.task = task;
+			}
+
+			static boolean applies(RequestOptions options) {
+				return (options.maxRetries > 0 && isIdempotent(options)) || (options.hedge && isSafe(options));
+			}
+
+			private static String method(RequestOptions options) {
+				return options.method != null ? options.method.toUpperCase(Locale.ENGLISH) : GET_METHOD;
+			}
+
+			private static boolean isSafe(RequestOptions options) {
+				String method = method(options);
+				return GET_METHOD.equals(method) || HEAD_METHOD.equals(method) || "OPTIONS".equals(method);
+			}
+
+			private static boolean isIdempotent(RequestOptions options) {
+				String method = method(options);
+				if (!isSafe(options) && !"PUT".equals(method) && !"DELETE".equals(method)) {
+					return false;
 				}
+				// streams and channels are consumed by the first attempt and cannot be sent again
+				Object content = options.content;
+				return content == null || content instanceof String || content instanceof byte[]
+					|| content instanceof ByteBuffer || content instanceof java.io.File;
+			}
 
-				// If the user hasn't added an Accept-Encoding header, we add gzip as something we accept
-				if (!hasAcceptHeader) {
-					connection.addRequestProperty("Accept-Encoding", "gzip");
+			void start(android.os.Handler handler) {
+				handle.queue(null, null, handler, task);
+				handle.waitingOn = this;
+
+				synchronized (this) {
+					launch(false);
+					long delay = hedgeDelay();
+					if (delay >= 0) {
+						timer = deadlineScheduler().schedule(new Runnable() {
+							@Override
+							public void run() {
+								hedge();
+							}
+						}, delay, TimeUnit.MILLISECONDS);
+					}
 				}
 			}
 
-			public void writeContent(HttpURLConnection connection, Stack<Closeable> openedStreams) throws IOException {
-				if (this.content == null) {
+			private long hedgeDelay() {
+				if (!options.hedge || !isSafe(options)) {
+					return -1;
+				}
+				if (options.hedgeDelay >= 0) {
+					return options.hedgeDelay;
+				}
+				TimingHistogram histogram = getTimingHistogram(HostScheduler.hostKey(options.url), TIMING_TOTAL);
+				if (histogram == null || histogram.getCount() < MIN_HEDGE_SAMPLES) {
+					return -1;
+				}
+				return histogram.getPercentile(options.hedgePercentile);
+			}
+
+			private synchronized void hedge() {
+				timer = null;
+				if (done || hedgedAttempt != null || attempts.size() != 1) {
 					return;
 				}
+				hedgeCount.incrementAndGet();
+				hedgedAttempt = launch(true);
+			}
 
-				OutputStream outStream = connection.getOutputStream();
-				openedStreams.push(outStream);
+			private synchronized void retry() {
+				timer = null;
+				if (!done) {
+					launch(false);
+				}
+			}
+
+			private RequestHandle launch(boolean hedged) {
+				RequestHandle attempt = new RequestHandle(options.url);
+				HttpRequestTask attemptTask = new HttpRequestTask(this, attempt, attempt);
+				if (!hedged) {
+					// two attempts reporting at once would make progress jump back and forth; a retry restarts from zero,
+					// which the reporters hide by holding at the furthest point the earlier attempts reached
+					attemptTask.uploadProgress = task.uploadProgress;
+					attemptTask.downloadProgress = task.downloadProgress;
+				}
+				attempts.add(attempt);
+				submit(options, attempt, attemptTask, null);
+				return attempt;
+			}
 
-				if (this.content instanceof String) {
-					OutputStreamWriter writer = new OutputStreamWriter(outStream);
-					openedStreams.push(writer);
+			@Override
+			public void onComplete(Object value, Object tag) {
+				RequestHandle attempt = (RequestHandle) tag;
+				RequestResult result = (RequestResult) value;
+				ArrayList<RequestHandle> losers;
+				synchronized (this) {
+					attempts.remove(attempt);
+					if (done) {
+						// a loser that was cancelled, or an attempt that finished after the caller left
+						return;
+					}
 
-					writer.write((String) this.content);
-				} else {
-					outStream.write(((java.nio.ByteBuffer) this.content).array());
+					if (shouldRetry(result)) {
+						if (!attempts.isEmpty()) {
+							// the other hedged attempt may still succeed
+							return;
+						}
+						if (retries < options.maxRetries) {
+							retries++;
+							retryCount.incrementAndGet();
+							if (timer != null) {
+								timer.cancel(false);
+							}
+							timer = deadlineScheduler().schedule(new Runnable() {
+								@Override
+								public void run() {
+									retry();
+								}
+							}, backoff(result), TimeUnit.MILLISECONDS);
+							return;
+						}
+					}
+
+					done = true;
+					if (attempt == hedgedAttempt) {
+						hedgeWinCount.incrementAndGet();
+					}
+					losers = takeAttempts();
+				}
+
+				for (RequestHandle loser : losers) {
+					loser.cancel();
+				}
+				handle.complete(result);
+			}
+
+			@Override
+			public void onError(String error, Object tag) {
+				onComplete(null, tag);
+			}
+
+			@Override
+			public void leave(RequestHandle waiter) {
+				ArrayList<RequestHandle> abandoned;
+				synchronized (this) {
+					if (done) {
+						return;
+					}
+					done = true;
+					abandoned = takeAttempts();
+				}
+
+				for (RequestHandle attempt : abandoned) {
+					attempt.cancel();
+				}
+			}
+
+			private ArrayList<RequestHandle> takeAttempts() {
+				if (timer != null) {
+					timer.cancel(false);
+					timer = null;
+				}
+				ArrayList<RequestHandle> taken = new ArrayList<RequestHandle>(attempts);
+				attempts.clear();
+				return taken;
+			}
+
+			private boolean shouldRetry(RequestResult result) {
+				if (result == null) {
+					return false;
+				}
+
+				switch (result.errorCode) {
+					case RequestResult.ERROR_CONNECT_TIMEOUT:
+					case RequestResult.ERROR_READ_TIMEOUT:
+						return true;
+					case RequestResult.ERROR_FAILED:
+						// connection refused, reset, unknown host and the like; a bad certificate or a broken protocol fails again
+						return result.error instanceof IOException && !isPermanentFailure(result.error);
+					case RequestResult.ERROR_NONE:
+						int[] codes = options.retryStatusCodes != null ? options.retryStatusCodes : DEFAULT_RETRY_STATUS_CODES;
+						for (int code : codes) {
+							if (code == result.statusCode) {
+								return true;
+							}
+						}
+						return false;
+					default:
+						return false;
+				}
+			}
+
+			static boolean isPermanentFailure(Throwable error) {
+				for (Throwable e = error; e != null; e = e.getCause()) {
+					if (e instanceof javax.net.ssl.SSLException || e instanceof java.security.cert.CertificateException
+						|| e instanceof java.net.ProtocolException || e instanceof java.net.MalformedURLException
+						|| e instanceof java.net.UnknownServiceException) {
+						return true;
+					}
+					if (e.getCause() == e) {
+						break;
+					}
+				}
+				return false;
+			}
+
+			/**
+			 * Full jitter: a random delay up to the exponential cap, so that clients that failed together do not retry together.
+			 * A Retry-After header in seconds is honored up to retryMaxDelay.
+			 */
+			private long backoff(RequestResult result) {
+				long cap = Math.min(options.retryMaxDelay, options.retryBaseDelay << Math.min(retries - 1, 20));
+				long delay = (long) (ThreadLocalRandom.current().nextDouble() * cap);
+
+				String retryAfter = result != null && result.errorCode == RequestResult.ERROR_NONE ? result.getHeader("Retry-After") : null;
+				if (retryAfter != null) {
+					try {
+						delay = Math.max(delay, Math.min(options.retryMaxDelay, Long.parseLong(retryAfter.trim()) * 1000));
+					} catch (NumberFormatException e) {
+						// an HTTP date, fall back to the computed delay
+					}
 				}
+
+				return delay;
 			}
 		}
 
-		public static class RequestResult {
-			public ByteArrayOutputStream raw;
-			public ArrayList<KeyValuePair> headers = new ArrayList<KeyValuePair>();
-			public int statusCode;
-			public String responseAsString;
-			public Bitmap responseAsImage;
-			public Exception error;
-			public String url;
-			public String statusText;
+		public static long getDeduplicationHitCount() {
+			return SharedRequest.hitCount.get();
+		}
 
-			public void getHeaders(HttpURLConnection connection) {
-				Map<String, List<String>> headers = connection.getHeaderFields();
-				if (headers == null) {
-					// no headers, this may happen if there is no internet connection currently available
-					return;
+		public static long getDeduplicationMissCount() {
+			return SharedRequest.missCount.get();
+		}
+
+		/**
+		 * Identical GET and HEAD requests made with RequestOptions.deduplicate while one of them is still in flight share
+		 * a single network exchange, and every caller gets the same RequestResult. Each caller keeps its own handle:
+		 * cancelling or timing out only detaches that caller, and the exchange is cancelled once nobody is waiting for it.
+		 * Progress goes to every caller still waiting that asked for it, through its own callback, handler and interval.
+		 */
+		static class SharedRequest implements CompleteCallback, Waitable {
+			private static final HashMap<String, SharedRequest> inFlight = new HashMap<String, SharedRequest>();
+			private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+			static final AtomicLong hitCount = new AtomicLong();
+			static final AtomicLong missCount = new AtomicLong();
+
+			private static class Subscriber {
+				final RequestHandle handle;
+				final ProgressReporter upload;
+				final ProgressReporter download;
+
+				Subscriber(RequestHandle handle, ProgressReporter upload, ProgressReporter download) {
+					this.handle = handle;
+					this.upload = upload;
+					this.download = download;
 				}
+			}
 
-				int size = headers.size();
-				if (size == 0) {
-					return;
+			private final String key;
+			private final ArrayList<RequestHandle> waiters = new ArrayList<RequestHandle>();
+			private final RequestHandle exchange;
+			// copied on write under the inFlight lock, read by the thread running the exchange
+			private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
+
+			private final ProgressCallback uploadRelay = new ProgressCallback() {
+				@Override
+				public void onProgress(long transferred, long total, Object tag) {
+					for (Subscriber subscriber : subscribers) {
+						relay(subscriber.upload, transferred, total);
+					}
 				}
+			};
 
-				for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
-					String key = entry.getKey();
-					for (String value : entry.getValue()) {
-						this.headers.add(new KeyValuePair(key, value));
+			private final ProgressCallback downloadRelay = new ProgressCallback() {
+				@Override
+				public void onProgress(long transferred, long total, Object tag) {
+					for (Subscriber subscriber : subscribers) {
+						relay(subscriber.download, transferred, total);
 					}
 				}
+			};
+
+			private SharedRequest(String key, String url) {
+				this.key = key;
+				this.exchange = new RequestHandle(url);
 			}
 
-			public void readResponseStream(HttpURLConnection connection, Stack<Closeable> openedStreams, RequestOptions options) throws IOException {
-				int contentLength = connection.getContentLength();
+			/**
+			 * Returns null for requests that must not be shared: anything but GET and HEAD, or a body streamed to a destination.
+			 */
+			static String keyOf(RequestOptions options) {
+				String method = options.method != null ? options.method.toUpperCase(Locale.ENGLISH) : GET_METHOD;
+				if (!(GET_METHOD.equals(method) || HEAD_METHOD.equals(method)) || options.content != null
+					|| options.responseFilePath != null || options.responseChannel != null) {
+					return null;
+				}
 
-				InputStream inStream =
-					this.statusCode >= 400
-						? connection.getErrorStream()
-						: connection.getInputStream();
+				// everything that changes the exchange or the shape of the result
+				StringBuilder key = new StringBuilder(method).append(' ').append(options.url)
+					.append('\n').append(options.directBufferResponse).append(' ').append(options.dontFollowRedirects)
+					.append(' ').append(options.screenWidth).append('x').append(options.screenHeight);
+				if (options.deduplicationHeaders != null) {
+					for (String name : options.deduplicationHeaders) {
+						key.append('\n').append(name.toLowerCase(Locale.ENGLISH)).append(':').append(options.getHeader(name));
+					}
+				} else if (options.headers != null) {
+					ArrayList<String> lines = new ArrayList<String>(options.headers.size());
+					for (KeyValuePair pair : options.headers) {
+						lines.add(pair.key.toLowerCase(Locale.ENGLISH) + ':' + pair.value);
+					}
+					Collections.sort(lines);
+					for (String line : lines) {
+						key.append('\n').append(line);
+					}
+				}
 
-				if (inStream == null) {
-					// inStream is null when receiving status code 401 or 407
-					// see this thread for more information http://stackoverflow.com/a/24986433
+				return key.toString();
+			}
+
+			static void join(String key, RequestOptions options, RequestHandle handle, HttpRequestTask task, android.os.Handler handler, Object context) {
+				synchronized (inFlight) {
+					handle.queue(null, null, handler, task);
+					SharedRequest shared = inFlight.get(key);
+					if (shared != null) {
+						shared.waiters.add(handle);
+						shared.subscribe(handle, options, handler, context);
+						handle.waitingOn = shared;
+						hitCount.incrementAndGet();
+						return;
+					}
+
+					shared = new SharedRequest(key, options.url);
+					shared.waiters.add(handle);
+					shared.subscribe(handle, options, handler, context);
+					handle.waitingOn = shared;
+					inFlight.put(key, shared);
+					missCount.incrementAndGet();
+
+					// the exchange reports inline to the relays, which fan out to whoever is subscribed at the time
+					HttpRequestTask exchangeTask = new HttpRequestTask(shared, null, shared.exchange);
+					exchangeTask.uploadProgress = new ProgressReporter(shared.uploadRelay, null, null, 0);
+					exchangeTask.downloadProgress = new ProgressReporter(shared.downloadRelay, null, null, 0);
+					execute(options, shared.exchange, exchangeTask, null);
+				}
+			}
+
+			// called with the inFlight lock held
+			private void subscribe(RequestHandle handle, RequestOptions options, android.os.Handler handler, Object context) {
+				ProgressReporter upload = ProgressReporter.create(options.uploadProgressCallback, context, handler, options.progressInterval);
+				ProgressReporter download = ProgressReporter.create(options.downloadProgressCallback, context, handler, options.progressInterval);
+				if (upload == null && download == null) {
 					return;
 				}
 
-				// In the event we don't have a null stream, and we have gzip as part of the encoding
-				// then we will use gzip to decode the stream
-				// Ignore gzip encoding for 204 'No Content' status to prevent java.io.EOFException
-				String encodingHeader = connection.getHeaderField("Content-Encoding");
-				if (encodingHeader != null && encodingHeader.toLowerCase().contains("gzip") && this.statusCode != 204) {
-					inStream = new GZIPInputStream(inStream);
+				Subscriber[] current = subscribers;
+				Subscriber[] next = Arrays.copyOf(current, current.length + 1);
+				next[current.length] = new Subscriber(handle, upload, download);
+				subscribers = next;
+			}
+
+			// called with the inFlight lock held
+			private void unsubscribe(RequestHandle handle) {
+				Subscriber[] current = subscribers;
+				for (int i = 0; i < current.length; i++) {
+					if (current[i].handle == handle) {
+						Subscriber[] next = new Subscriber[current.length - 1];
+						System.arraycopy(current, 0, next, 0, i);
+						System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+						subscribers = next;
+						return;
+					}
 				}
+			}
 
-				openedStreams.push(inStream);
+			private static void relay(ProgressReporter reporter, long transferred, long total) {
+				if (reporter != null) {
+					reporter.setTotal(total);
+					reporter.update(transferred);
+				}
+			}
 
-				BufferedInputStream buffer = new BufferedInputStream(inStream, 4096);
-				openedStreams.push(buffer);
+			@Override
+			public void leave(RequestHandle waiter) {
+				boolean abandoned;
+				synchronized (inFlight) {
+					unsubscribe(waiter);
+					abandoned = waiters.remove(waiter) && waiters.isEmpty();
+					if (abandoned && inFlight.get(key) == this) {
+						inFlight.remove(key);
+					}
+				}
 
-				ByteArrayOutputStream2 responseStream = contentLength != -1 ? new ByteArrayOutputStream2(contentLength) : new ByteArrayOutputStream2();
-				openedStreams.push(responseStream);
+				if (abandoned) {
+					exchange.cancel();
+				}
+			}
 
-				byte[] buff = new byte[4096];
-				int read = -1;
-				while ((read = buffer.read(buff, 0, buff.length)) != -1) {
-					responseStream.write(buff, 0, read);
+			@Override
+			public void onComplete(Object result, Object tag) {
+				complete((RequestResult) result);
+			}
+
+			@Override
+			public void onError(String error, Object tag) {
+				complete(null);
+			}
+
+			private void complete(RequestResult result) {
+				ArrayList<RequestHandle> waiting;
+				Subscriber[] subscribed;
+				synchronized (inFlight) {
+					if (inFlight.get(key) == this) {
+						inFlight.remove(key);
+					}
+					waiting = new ArrayList<RequestHandle>(waiters);
+					waiters.clear();
+					subscribed = subscribers;
+					subscribers = NO_SUBSCRIBERS;
 				}
 
-				this.raw = responseStream;
-				buff = null;
+				// the last values may have been throttled, they are posted ahead of the completions
+				for (Subscriber subscriber : subscribed) {
+					if (subscriber.upload != null) {
+						subscriber.upload.flush();
+					}
+					if (subscriber.download != null) {
+						subscriber.download.flush();
+					}
+				}
 
-				// make the byte array conversion here, not in the JavaScript
-				// world for better performance
-				// since we do not have some explicit way to determine whether
-				// the content-type is image
-				try {
-					// TODO: Generally this approach will not work for very
-					// large files
-					BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
-					bitmapOptions.inJustDecodeBounds = true;
+				for (RequestHandle waiter : waiting) {
+					waiter.complete(result);
+				}
+			}
+		}
 
-					// check the size of the bitmap first
-					BitmapFactory.decodeByteArray(responseStream.buf(), 0, responseStream.size(), bitmapOptions);
-					if (bitmapOptions.outWidth > 0 && bitmapOptions.outHeight > 0) {
-						int scale = 1;
-						final int height = bitmapOptions.outHeight;
-						final int width = bitmapOptions.outWidth;
+		public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST = 6;
 
-						if ((options.screenWidth > 0 && bitmapOptions.outWidth > options.screenWidth) ||
-							(options.screenHeight > 0 && bitmapOptions.outHeight > options.screenHeight)) {
-							final int halfHeight = height / 2;
-							final int halfWidth = width / 2;
+		private static final HostScheduler hostScheduler = new HostScheduler(DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST);
 
-							// scale down the image since it is larger than the
-							// screen resolution
-							while ((halfWidth / scale) > options.screenWidth && (halfHeight / scale) > options.screenHeight) {
-								scale *= 2;
-							}
-						}
+		/**
+		 * Limits how many requests to the same host (host:port) may occupy executor threads at once.
+		 * Requests over the limit wait in a per-host queue, ordered by priority, so that a burst to one
+		 * host cannot take every thread away from the others.
+		 */
+		public static void setMaxConcurrentRequestsPerHost(int value) {
+			hostScheduler.setMaxPerHost(value);
+		}
 
-						bitmapOptions.inJustDecodeBounds = false;
-						bitmapOptions.inSampleSize = scale;
-						this.responseAsImage = BitmapFactory.decodeByteArray(responseStream.buf(), 0, responseStream.size(), bitmapOptions);
+		public static int getMaxConcurrentRequestsPerHost() {
+			return hostScheduler.getMaxPerHost();
+		}
+
+		public static final int TIMING_QUEUE_WAIT = 0;
+		public static final int TIMING_CONNECT = 1;
+		public static final int TIMING_SEND = 2;
+		public static final int TIMING_FIRST_BYTE = 3;
+		public static final int TIMING_BODY_READ = 4;
+		public static final int TIMING_TOTAL = 5;
+		private static final int TIMING_STAGES = 6;
+
+		// hosts with histograms; an app that talks to many hosts keeps those it used most recently
+		private static final int MAX_TIMED_HOSTS = 64;
+
+		private static final LinkedHashMap<String, TimingHistogram[]> hostTimings = new LinkedHashMap<String, TimingHistogram[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, TimingHistogram[]> eldest) {
+				return size() > MAX_TIMED_HOSTS;
+			}
+		};
+
+		/**
+		 * Returns the distribution of one of the TIMING_* stages for requests that went to the network for the given host
+		 * (host:port, as used by getActiveRequestCount), or null if nothing was recorded for the host yet. Only the
+		 * MAX_TIMED_HOSTS most recently used hosts are kept.
+		 */
+		public static TimingHistogram getTimingHistogram(String host, int stage) {
+			TimingHistogram[] histograms;
+			synchronized (hostTimings) {
+				histograms = hostTimings.get(host);
+			}
+			return histograms != null && stage >= 0 && stage < TIMING_STAGES ? histograms[stage] : null;
+		}
+
+		public static String[] getTimedHosts() {
+			synchronized (hostTimings) {
+				return hostTimings.keySet().toArray(new String[0]);
+			}
+		}
+
+		public static void resetTimingHistograms() {
+			synchronized (hostTimings) {
+				hostTimings.clear();
+			}
+		}
+
+		static void recordTiming(String host, RequestTiming timing) {
+			TimingHistogram[] histograms;
+			synchronized (hostTimings) {
+				histograms = hostTimings.get(host);
+				if (histograms == null) {
+					histograms = new TimingHistogram[TIMING_STAGES];
+					for (int i = 0; i < TIMING_STAGES; i++) {
+						histograms[i] = new TimingHistogram();
 					}
-				} catch (Throwable t) {
-					Log.e(TAG, "Failed to decode byte array, Throwable: " + t.getMessage());
+					hostTimings.put(host, histograms);
 				}
+			}
 
-				if (this.responseAsImage == null) {
-					// convert to string
-					this.responseAsString = responseStream.toString();
-				}
+			histograms[TIMING_QUEUE_WAIT].record(timing.queueWait);
+			histograms[TIMING_CONNECT].record(timing.connect);
+			histograms[TIMING_SEND].record(timing.send);
+			histograms[TIMING_FIRST_BYTE].record(timing.firstByte);
+			histograms[TIMING_BODY_READ].record(timing.bodyRead);
+			histograms[TIMING_TOTAL].record(timing.total);
+		}
+
+		/**
+		 * Where the time of a single request went, in milliseconds. Stages that did not happen (a cache hit never connects,
+		 * a HEAD request reads no body) are -1. Connecting includes DNS and the TLS handshake, which HttpURLConnection does
+		 * not report separately; it is close to zero when a pooled connection is reused.
+		 */
+		public static class RequestTiming {
+			// from MakeRequest until an executor thread picked the request up
+			public long queueWait = -1;
+			public long connect = -1;
+			// writing the request body
+			public long send = -1;
+			// from the request being sent until the response headers arrived
+			public long firstByte = -1;
+			public long bodyRead = -1;
+			// time spent converting the body with getResponseAsString and getResponseAsImage
+			public long decode = -1;
+
+			// body sizes before and after Content-Encoding was applied, -1 when the body was not encoded
+			public long requestBodyBytes = -1;
+			public long requestBodyEncodedBytes = -1;
+			public long responseBodyBytes = -1;
+			public long responseBodyEncodedBytes = -1;
+			// thread CPU time spent writing and compressing the request body, and reading and decompressing the response body
+			public long compressionCpuTimeMicros = -1;
+			public long decompressionCpuTimeMicros = -1;
+			// from the request being picked up until the result was ready, excluding the queue wait and decoding
+			public long total = -1;
+
+			private long mark;
+
+			void start() {
+				this.mark = SystemClock.elapsedRealtime();
 			}
 
-			public static final class ByteArrayOutputStream2 extends ByteArrayOutputStream {
-				public ByteArrayOutputStream2() {
-					super();
+			/**
+			 * Returns the time since the previous mark and starts the next stage.
+			 */
+			long lap() {
+				long now = SystemClock.elapsedRealtime();
+				long elapsed = now - this.mark;
+				this.mark = now;
+				return elapsed;
+			}
+
+			synchronized void addDecodeTime(long elapsed) {
+				this.decode = this.decode < 0 ? elapsed : this.decode + elapsed;
+			}
+
+			/**
+			 * Returns how many times smaller the request body was sent, or -1 if it was not compressed.
+			 */
+			public double getRequestCompressionRatio() {
+				return requestBodyEncodedBytes > 0 ? (double) requestBodyBytes / requestBodyEncodedBytes : -1;
+			}
+
+			public double getResponseCompressionRatio() {
+				return responseBodyEncodedBytes > 0 ? (double) responseBodyBytes / responseBodyEncodedBytes : -1;
+			}
+
+			@Override
+			public String toString() {
+				return "queueWait=" + queueWait + " connect=" + connect + " send=" + send + " firstByte=" + firstByte
+					+ " bodyRead=" + bodyRead + " decode=" + decode + " total=" + total;
+			}
+		}
+
+		/**
+		 * A lock-free histogram with power-of-two millisecond buckets: bucket i counts values up to 2^i ms,
+		 * the last bucket counts everything above. Recording is a couple of atomic increments.
+		 */
+		public static class TimingHistogram {
+			private static final int BUCKETS = 18;
+
+			private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+			private final AtomicLong count = new AtomicLong();
+			private final AtomicLong sum = new AtomicLong();
+			private final AtomicLong max = new AtomicLong();
+
+			void record(long value) {
+				if (value < 0) {
+					return;
 				}
 
-				public ByteArrayOutputStream2(int size) {
-					super(size);
+				int bucket = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+				buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+				count.incrementAndGet();
+				sum.addAndGet(value);
+				long current;
+				while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+					// retry
 				}
+			}
 
-				/**
-				 * Returns the internal buffer of this ByteArrayOutputStream, without copying.
-				 */
-				public synchronized byte[] buf() {
-					return this.buf;
+			public long getCount() {
+				return count.get();
+			}
+
+			public double getMean() {
+				long n = count.get();
+				return n == 0 ? 0 : (double) sum.get() / n;
+			}
+
+			public long getMax() {
+				return max.get();
+			}
+
+			public int getBucketCount() {
+				return BUCKETS;
+			}
+
+			/**
+			 * Returns the inclusive upper bound of the bucket in milliseconds, or -1 for the last, unbounded, bucket.
+			 */
+			public long getBucketUpperBound(int index) {
+				return index < BUCKETS - 1 ? 1L << index : -1;
+			}
+
+			public long getBucketValue(int index) {
+				return buckets.get(index);
+			}
+
+			/**
+			 * Estimates the given percentile (0-100) by interpolating inside the bucket that contains it.
+			 * Returns -1 if nothing was recorded.
+			 */
+			public long getPercentile(double percentile) {
+				long n = count.get();
+				if (n == 0) {
+					return -1;
 				}
+
+				double rank = Math.max(0, Math.min(100, percentile)) / 100 * n;
+				long seen = 0;
+				for (int i = 0; i < BUCKETS; i++) {
+					long inBucket = buckets.get(i);
+					if (inBucket > 0 && seen + inBucket >= rank) {
+						long lower = i == 0 ? 0 : (1L << (i - 1));
+						long upper = i < BUCKETS - 1 ? Math.min(1L << i, max.get()) : max.get();
+						return lower + Math.round((upper - lower) * ((rank - seen) / inBucket));
+					}
+					seen += inBucket;
+				}
+
+				return max.get();
 			}
 		}
 
-		static class HttpRequestTask {
-			private final CompleteCallback callback;
-			private final Object context;
+		/**
+		 * Returns the number of requests to the given host (host:port) that are queued on or running in the executor.
+		 */
+		public static int getActiveRequestCount(String host) {
+			return hostScheduler.getActiveCount(host);
+		}
 
-			public HttpRequestTask(CompleteCallback callback, Object context) {
-				this.callback = callback;
-				this.context = context;
+		/**
+		 * Returns the number of requests to the given host (host:port) held back by the per-host limit.
+		 */
+		public static int getPendingRequestCount(String host) {
+			return hostScheduler.getPendingCount(host);
+		}
+
+		static class HostScheduler {
+			private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+			private int maxPerHost;
+
+			static class Host {
+				int active;
+				final PriorityQueue<PrioritizedRunnable> pending = new PriorityQueue<PrioritizedRunnable>();
 			}
 
-			protected RequestResult doInBackground(RequestOptions... params) {
-				RequestResult result = new RequestResult();
-				Stack<Closeable> openedStreams = new Stack<Closeable>();
+			HostScheduler(int maxPerHost) {
+				this.maxPerHost = maxPerHost;
+			}
+
+			static String hostKey(String url) {
+				try {
+					URL parsed = new URL(url);
+					int port = parsed.getPort() != -1 ? parsed.getPort() : parsed.getDefaultPort();
+					return parsed.getHost() + ":" + port;
+				} catch (Exception e) {
+					// malformed urls fail right away in the task
+					return "";
+				}
+			}
+
+			synchronized void setMaxPerHost(int value) {
+				maxPerHost = Math.max(1, value);
+				for (Host host : hosts.values()) {
+					drain(host);
+				}
+			}
+
+			synchronized int getMaxPerHost() {
+				return maxPerHost;
+			}
+
+			synchronized int getActiveCount(String key) {
+				Host host = hosts.get(key);
+				return host != null ? host.active : 0;
+			}
+
+			synchronized int getPendingCount(String key) {
+				Host host = hosts.get(key);
+				return host != null ? host.pending.size() : 0;
+			}
+
+			synchronized void submit(String key, PrioritizedRunnable task) {
+				Host host = hosts.get(key);
+				if (host == null) {
+					host = new Host();
+					hosts.put(key, host);
+				}
+				host.pending.add(task);
+				drain(host);
+			}
+
+			/**
+			 * Called once for every task that got a slot, when it is done running or removed from the executor.
+			 */
+			synchronized void release(String key) {
+				Host host = hosts.get(key);
+				if (host == null) {
+					return;
+				}
+				host.active--;
+				drain(host);
+				if (host.active == 0 && host.pending.isEmpty()) {
+					hosts.remove(key);
+				}
+			}
+
+			/**
+			 * Removes a task that has not started yet. Returns false if it is already running or done.
+			 */
+			boolean remove(String key, PrioritizedRunnable task) {
+				synchronized (this) {
+					Host host = hosts.get(key);
+					if (host != null && host.pending.remove(task)) {
+						return true;
+					}
+				}
+
+				if (threadPoolExecutor().remove(task)) {
+					// it held a slot but will never run
+					release(key);
+					return true;
+				}
+
+				return false;
+			}
+
+			private void drain(Host host) {
+				while (host.active < maxPerHost && !host.pending.isEmpty()) {
+					host.active++;
+					threadPoolExecutor().execute(host.pending.poll());
+				}
+			}
+		}
+
+		private static ScheduledThreadPoolExecutor deadlineScheduler;
+
+		static synchronized ScheduledThreadPoolExecutor deadlineScheduler() {
+			if (deadlineScheduler == null) {
+				deadlineScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Async.Http.Deadline");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				deadlineScheduler.setRemoveOnCancelPolicy(true);
+			}
+
+			return deadlineScheduler;
+		}
+
+		/**
+		 * Returned by {@link #MakeRequest}. A queued request is removed from the executor when cancelled,
+		 * a running one has its connection torn down so that any blocking read or write fails right away.
+		 */
+		public static class RequestHandle {
+			private static final int STATE_QUEUED = 0;
+			private static final int STATE_RUNNING = 1;
+			private static final int STATE_DONE = 2;
+
+			private final String url;
+			private final AtomicInteger state = new AtomicInteger(STATE_QUEUED);
+			private volatile int abortReason = RequestResult.ERROR_NONE;
+			private HttpURLConnection connection;
+			private PrioritizedRunnable runnable;
+			private String host;
+			private android.os.Handler handler;
+			private HttpRequestTask task;
+			private ScheduledFuture<?> deadline;
+			// set when the handle waits on attempts run by someone else instead of on its own queued task
+			Waitable waitingOn;
+
+			RequestHandle(String url) {
+				this.url = url;
+			}
+
+			/**
+			 * Cancels the request. Returns false if it has already completed or was aborted before.
+			 */
+			public boolean cancel() {
+				return abort(RequestResult.ERROR_CANCELLED);
+			}
+
+			public boolean isCancelled() {
+				return abortReason == RequestResult.ERROR_CANCELLED;
+			}
+
+			public boolean isDone() {
+				return state.get() == STATE_DONE;
+			}
+
+			void queue(PrioritizedRunnable runnable, String host, android.os.Handler handler, HttpRequestTask task) {
+				this.runnable = runnable;
+				this.host = host;
+				this.handler = handler;
+				this.task = task;
+			}
+
+			synchronized void scheduleDeadline(long timeout) {
+				if (state.get() == STATE_DONE) {
+					return;
+				}
+				deadline = deadlineScheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						abort(RequestResult.ERROR_TIMEOUT);
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+
+			boolean abort(int reason) {
+				HttpURLConnection active;
+				synchronized (this) {
+					if (abortReason != RequestResult.ERROR_NONE || state.get() == STATE_DONE) {
+						return false;
+					}
+					abortReason = reason;
+					active = connection;
+				}
+
+				if (state.compareAndSet(STATE_QUEUED, STATE_DONE)) {
+					if (runnable != null) {
+						hostScheduler.remove(host, runnable);
+					}
+					if (waitingOn != null) {
+						waitingOn.leave(this);
+					}
+					cancelDeadline();
+					final RequestResult result = RequestResult.aborted(url, reason);
+					deliver(handler, new Runnable() {
+						@Override
+						public void run() {
+							task.onPostExecute(result);
+						}
+					});
+				} else if (active != null) {
+					// unblocks the worker thread, which then reports the abort reason
+					active.disconnect();
+				}
+
+				return true;
+			}
+
+			boolean start() {
+				return state.compareAndSet(STATE_QUEUED, STATE_RUNNING);
+			}
+
+			/**
+			 * Completes a caller that waited on a shared request.
+			 */
+			void complete(RequestResult result) {
+				if (!start()) {
+					return;
+				}
+				final RequestResult finished = finish(result);
+				deliver(handler, new Runnable() {
+					@Override
+					public void run() {
+						task.onPostExecute(finished);
+					}
+				});
+			}
+
+			RequestResult finish(RequestResult result) {
+				synchronized (this) {
+					state.set(STATE_DONE);
+					connection = null;
+				}
+				cancelDeadline();
+
+				int reason = abortReason;
+				if (reason != RequestResult.ERROR_NONE) {
+					return RequestResult.aborted(url, reason);
+				}
+
+				return result;
+			}
+
+			synchronized void attach(HttpURLConnection connection) throws IOException {
+				if (abortReason != RequestResult.ERROR_NONE) {
+					throw RequestResult.abortException(abortReason);
+				}
+				this.connection = connection;
+			}
+
+			private synchronized void cancelDeadline() {
+				if (deadline != null) {
+					deadline.cancel(false);
+					deadline = null;
+				}
+			}
+		}
+
+		private static Engine engine;
+
+		/**
+		 * Replaces the engine used to open and release connections for all subsequent requests.
+		 * Pass null to restore the default {@link PooledEngine}.
+		 */
+		public static synchronized void setEngine(Engine value) {
+			engine = value;
+		}
+
+		public static synchronized Engine getEngine() {
+			if (engine == null) {
+				engine = new PooledEngine();
+			}
+
+			return engine;
+		}
+
+		/**
+		 * Opens the connections used by {@link HttpRequestTask} and decides what happens to them
+		 * once a request is done - whether the socket goes back to the keep-alive pool or is torn down.
+		 */
+		public interface Engine {
+			HttpURLConnection open(URL url) throws IOException;
+
+			/**
+			 * @param reusable true only when the response body was read to its end, so the
+			 *                 underlying socket may be kept alive for the next request to the same host.
+			 */
+			void release(HttpURLConnection connection, boolean reusable);
+		}
+
+		/**
+		 * The pre-pooling behavior: every request opens a fresh connection and tears it down when done.
+		 */
+		public static class SimpleEngine implements Engine {
+			@Override
+			public HttpURLConnection open(URL url) throws IOException {
+				return (HttpURLConnection) url.openConnection();
+			}
+
+			@Override
+			public void release(HttpURLConnection connection, boolean reusable) {
+				connection.disconnect();
+			}
+		}
+
+		/**
+		 * Keeps finished connections alive in the platform connection pool instead of disconnecting them,
+		 * bounded by a per-host limit and a keep-alive duration. Connections beyond the limit for their host
+		 * are disconnected so that a burst to one host cannot pin an unbounded number of sockets.
+		 * <p>
+		 * The platform pool itself is one pool for the whole process: it keeps at most maxIdleConnections idle
+		 * sockets across all hosts and closes the least recently used beyond that, whatever the per-host limit
+		 * allows. Its settings are the process-wide http.keepAlive, http.maxConnections and http.keepAliveDuration
+		 * system properties, which affect every HttpURLConnection in the process. Only the first PooledEngine
+		 * created sets them, and HttpURLConnection reads them when its pool is first created, so the engine should
+		 * be installed before the first request is made.
+		 */
+		public static class PooledEngine implements Engine {
+			public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+			public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+			public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+			private static boolean platformConfigured;
+
+			private final int maxIdleConnectionsPerHost;
+			private final int maxIdleConnections;
+			private final long keepAliveDuration;
+			private final HashMap<String, HostPool> pools = new HashMap<String, HostPool>();
+
+			/**
+			 * What this engine knows about a host: connections it handed out and has not got back, and connections
+			 * it left open for reuse since. The platform pool can close or hand out those on its own, so keptAlive is
+			 * an upper bound on the idle sockets, used only to cap how many more are left open.
+			 */
+			static class HostPool {
+				int inUse;
+				int keptAlive;
+				long lastKeptAlive;
+			}
+
+			public PooledEngine() {
+				this(DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_DURATION);
+			}
+
+			public PooledEngine(int maxIdleConnectionsPerHost, long keepAliveDuration) {
+				this(maxIdleConnectionsPerHost, Math.max(maxIdleConnectionsPerHost, DEFAULT_MAX_IDLE_CONNECTIONS), keepAliveDuration);
+			}
+
+			/**
+			 * @param maxIdleConnectionsPerHost the most idle connections this engine leaves open for one host
+			 * @param maxIdleConnections        the size of the process-wide platform pool, shared by all hosts
+			 */
+			public PooledEngine(int maxIdleConnectionsPerHost, int maxIdleConnections, long keepAliveDuration) {
+				this.maxIdleConnectionsPerHost = Math.max(0, maxIdleConnectionsPerHost);
+				this.maxIdleConnections = Math.max(0, maxIdleConnections);
+				this.keepAliveDuration = Math.max(0, keepAliveDuration);
+				configurePlatform(this.maxIdleConnectionsPerHost > 0 ? this.maxIdleConnections : 0, this.keepAliveDuration);
+			}
+
+			private static synchronized void configurePlatform(int maxIdleConnections, long keepAliveDuration) {
+				if (platformConfigured) {
+					return;
+				}
+				platformConfigured = true;
+				System.setProperty("http.keepAlive", maxIdleConnections > 0 ? "true" : "false");
+				System.setProperty("http.maxConnections", String.valueOf(Math.max(1, maxIdleConnections)));
+				System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveDuration));
+			}
+
+			public int getMaxIdleConnectionsPerHost() {
+				return maxIdleConnectionsPerHost;
+			}
+
+			public int getMaxIdleConnections() {
+				return maxIdleConnections;
+			}
+
+			public long getKeepAliveDuration() {
+				return keepAliveDuration;
+			}
+
+			/**
+			 * Returns the number of connections this engine opened for the given host (host:port) that are not released yet.
+			 */
+			public synchronized int getInUseConnectionCount(String host) {
+				HostPool pool = pools.get(host);
+				return pool != null ? pool.inUse : 0;
+			}
+
+			/**
+			 * Returns how many connections to the given host (host:port) were left open for reuse within the keep-alive
+			 * duration and not taken again since. The platform may have closed some of them already, in particular when
+			 * idle connections to all hosts together exceed maxIdleConnections.
+			 */
+			public synchronized int getKeptAliveConnectionCount(String host) {
+				HostPool pool = pools.get(host);
+				if (pool == null) {
+					return 0;
+				}
+				expireKeptAlive(pool, System.currentTimeMillis());
+				return pool.keptAlive;
+			}
+
+			@Override
+			public HttpURLConnection open(URL url) throws IOException {
+				HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+				synchronized (this) {
+					HostPool pool = pools.get(hostKey(url));
+					if (pool == null) {
+						pool = new HostPool();
+						pools.put(hostKey(url), pool);
+					}
+					expireKeptAlive(pool, System.currentTimeMillis());
+					if (pool.keptAlive > 0) {
+						// the platform most likely hands out one of the kept sockets for this host
+						pool.keptAlive--;
+					}
+					pool.inUse++;
+				}
+				return connection;
+			}
+
+			@Override
+			public void release(HttpURLConnection connection, boolean reusable) {
+				boolean keep = false;
+				synchronized (this) {
+					HostPool pool = pools.get(hostKey(connection.getURL()));
+					if (pool != null) {
+						long now = System.currentTimeMillis();
+						expireKeptAlive(pool, now);
+						pool.inUse = Math.max(0, pool.inUse - 1);
+						if (reusable && pool.keptAlive < maxIdleConnectionsPerHost) {
+							pool.keptAlive++;
+							pool.lastKeptAlive = now;
+							keep = true;
+						}
+						if (pool.inUse == 0 && pool.keptAlive == 0) {
+							pools.remove(hostKey(connection.getURL()));
+						}
+					}
+				}
+
+				// disconnect() closes the socket; skipping it leaves a fully read connection in the keep-alive pool
+				if (!keep) {
+					connection.disconnect();
+				}
+			}
+
+			private void expireKeptAlive(HostPool pool, long now) {
+				if (pool.keptAlive > 0 && now - pool.lastKeptAlive > keepAliveDuration) {
+					pool.keptAlive = 0;
+				}
+			}
+
+			private static String hostKey(URL url) {
+				int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+				return url.getHost() + ":" + port;
+			}
+		}
+
+		private static ResponseCache responseCache;
+
+		/**
+		 * Installs an HTTP response cache used by all subsequent GET requests. Pass null to disable caching.
+		 */
+		public static synchronized void setResponseCache(ResponseCache cache) {
+			responseCache = cache;
+		}
+
+		public static synchronized ResponseCache getResponseCache() {
+			return responseCache;
+		}
+
+		/**
+		 * A private HTTP cache for GET responses, stored in a {@link DiskLruCache} with its own size limit.
+		 * Freshness follows Cache-Control (max-age, no-cache, no-store, must-revalidate), Expires and
+		 * a heuristic based on Last-Modified; stale entries carrying an ETag or Last-Modified are revalidated
+		 * with a conditional request. Responses varying on request headers are only served to requests with
+		 * the same values for those headers.
+		 */
+		public static class ResponseCache {
+			private static final int APP_VERSION = 1;
+			private static final int ENTRY_METADATA = 0;
+			private static final int ENTRY_BODY = 1;
+			private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+
+			private volatile DiskLruCache diskCache;
+			private final AtomicInteger hitCount = new AtomicInteger();
+			private final AtomicInteger missCount = new AtomicInteger();
+			private final AtomicInteger conditionalHitCount = new AtomicInteger();
+			private final AtomicInteger storeCount = new AtomicInteger();
+
+			private ResponseCache(DiskLruCache diskCache) {
+				this.diskCache = diskCache;
+			}
+
+			public static ResponseCache open(java.io.File directory, long maxSize) throws IOException {
+				return new ResponseCache(DiskLruCache.open(directory, APP_VERSION, 2, maxSize));
+			}
+
+			/**
+			 * Requests served from the cache without touching the network.
+			 */
+			public int getHitCount() {
+				return hitCount.get();
+			}
+
+			/**
+			 * Cacheable requests that went to the network with no usable entry, including stale entries the server
+			 * replaced with a full response instead of confirming them with a 304.
+			 */
+			public int getMissCount() {
+				return missCount.get();
+			}
+
+			/**
+			 * Stale entries that were revalidated by the server with a 304 response.
+			 */
+			public int getConditionalHitCount() {
+				return conditionalHitCount.get();
+			}
+
+			public int getStoreCount() {
+				return storeCount.get();
+			}
+
+			public long getSize() {
+				return diskCache.size();
+			}
+
+			public long getMaxSize() {
+				return diskCache.maxSize();
+			}
+
+			public synchronized void clear() throws IOException {
+				java.io.File directory = diskCache.getDirectory();
+				long maxSize = diskCache.maxSize();
+				diskCache.delete();
+				diskCache = DiskLruCache.open(directory, APP_VERSION, 2, maxSize);
+			}
+
+			public void close() throws IOException {
+				diskCache.close();
+			}
+
+			/**
+			 * Returns the stored entry for the request, or null if there is none or it doesn't match the request.
+			 * The caller must close the returned entry.
+			 */
+			Entry get(RequestOptions options, String method) {
+				if (!GET_METHOD.equals(method) || options.responseFilePath != null || options.responseChannel != null) {
+					return null;
+				}
+
+				CacheControl requestCacheControl = CacheControl.parse(options.getHeader("Cache-Control"));
+				if (requestCacheControl.noStore) {
+					return null;
+				}
+
+				DiskLruCache.Snapshot snapshot = null;
+				try {
+					snapshot = diskCache.get(Cache.hashKeyForDisk(options.url));
+					if (snapshot == null) {
+						missCount.incrementAndGet();
+						return null;
+					}
+
+					Entry entry = Entry.read(snapshot);
+					if (!entry.url.equals(options.url) || !entry.matchesVary(options)) {
+						entry.close();
+						missCount.incrementAndGet();
+						return null;
+					}
+
+					entry.requestCacheControl = requestCacheControl;
+					return entry;
+				} catch (Exception e) {
+					Log.e(TAG, "Failed to read cached response, Exception: " + e.getMessage());
+					DiskLruCache.closeQuietly(snapshot);
+					return null;
+				}
+			}
+
+			/**
+			 * Stores a network response if it may be cached, otherwise drops any existing entry for the url.
+			 */
+			void put(RequestOptions options, String method, RequestResult result, HttpURLConnection connection, long requestTime, long responseTime) {
+				String key = Cache.hashKeyForDisk(options.url);
+				try {
+					if (!GET_METHOD.equals(method)) {
+						// a successful unsafe request invalidates what we know about the resource
+						if (!HEAD_METHOD.equals(method) && result.statusCode < 400) {
+							diskCache.remove(key);
+						}
+						return;
+					}
+
+					if (!isCacheable(options, result, connection)) {
+						diskCache.remove(key);
+						return;
+					}
+
+					Entry entry = new Entry();
+					entry.url = options.url;
+					entry.statusCode = result.statusCode;
+					entry.statusText = result.statusText;
+					entry.requestTime = requestTime;
+					entry.responseTime = responseTime;
+					entry.headers = readHeaderFields(connection);
+					ByteBuffer body = result.getResponseBytes();
+					// the body was decoded while it was read, the stored headers must describe what is stored
+					if (RequestResult.getContentCoding(entry.getHeader("Content-Encoding")) != null) {
+						entry.removeHeader("Content-Encoding");
+					}
+					entry.removeHeader("Transfer-Encoding");
+					entry.setHeader("Content-Length", String.valueOf(body != null ? body.remaining() : 0));
+					String vary = entry.getHeader("Vary");
+					if (vary != null) {
+						for (String name : vary.split(",")) {
+							String trimmed = name.trim();
+							if (trimmed.length() > 0) {
+								entry.varyHeaders.add(new KeyValuePair(trimmed, options.getVaryValue(trimmed)));
+							}
+						}
+					}
+
+					write(key, entry, body);
+				} catch (Exception e) {
+					Log.e(TAG, "Failed to store cached response, Exception: " + e.getMessage());
+				}
+			}
+
+			/**
+			 * Refreshes a stored entry after the server confirmed it with 304 Not Modified.
+			 */
+			void update(Entry entry, HttpURLConnection connection, long requestTime, long responseTime) {
+				conditionalHitCount.incrementAndGet();
+				for (KeyValuePair pair : readHeaderFields(connection)) {
+					// these describe the stored body, which a 304 does not replace
+					if (!"Content-Length".equalsIgnoreCase(pair.key) && !"Content-Encoding".equalsIgnoreCase(pair.key) && !"Transfer-Encoding".equalsIgnoreCase(pair.key)) {
+						entry.setHeader(pair.key, pair.value);
+					}
+				}
+				entry.requestTime = requestTime;
+				entry.responseTime = responseTime;
+
+				try {
+					DiskLruCache.Editor editor = entry.snapshot.edit();
+					if (editor != null) {
+						editor.set(ENTRY_METADATA, entry.writeMetadata());
+						editor.commit();
+					}
+				} catch (Exception e) {
+					Log.e(TAG, "Failed to update cached response, Exception: " + e.getMessage());
+				}
+			}
+
+			void recordHit() {
+				hitCount.incrementAndGet();
+			}
+
+			void recordMiss() {
+				missCount.incrementAndGet();
+			}
+
+			private void write(String key, Entry entry, ByteBuffer body) throws IOException {
+				DiskLruCache.Editor editor = diskCache.edit(key);
+				if (editor == null) {
+					// another request is storing this entry right now
+					return;
+				}
+
+				OutputStream outStream = null;
+				try {
+					editor.set(ENTRY_METADATA, entry.writeMetadata());
+					outStream = editor.newOutputStream(ENTRY_BODY);
+					if (body != null) {
+						if (body.hasArray()) {
+							outStream.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+						} else {
+							WritableByteChannel channel = java.nio.channels.Channels.newChannel(outStream);
+							while (body.hasRemaining()) {
+								channel.write(body);
+							}
+						}
+					}
+					outStream.close();
+					outStream = null;
+					editor.commit();
+					storeCount.incrementAndGet();
+				} catch (IOException e) {
+					DiskLruCache.closeQuietly(outStream);
+					editor.abort();
+					throw e;
+				}
+			}
+
+			private static boolean isCacheable(RequestOptions options, RequestResult result, HttpURLConnection connection) {
+				switch (result.statusCode) {
+					case 200:
+					case 203:
+					case 300:
+					case 301:
+					case 404:
+					case 410:
+						break;
+					default:
+						return false;
+				}
+
+				// only fully buffered bodies are stored
+				if (result.bytesWritten >= 0) {
+					return false;
+				}
+
+				CacheControl requestCacheControl = CacheControl.parse(options.getHeader("Cache-Control"));
+				CacheControl responseCacheControl = CacheControl.parse(connection.getHeaderField("Cache-Control"));
+				if (requestCacheControl.noStore || responseCacheControl.noStore) {
+					return false;
+				}
+
+				if (options.getHeader("Authorization") != null && !responseCacheControl.isPublic && !responseCacheControl.mustRevalidate && responseCacheControl.maxAgeSeconds < 0) {
+					return false;
+				}
+
+				String vary = connection.getHeaderField("Vary");
+				return vary == null || !vary.trim().equals("*");
+			}
+
+			private static ArrayList<KeyValuePair> readHeaderFields(HttpURLConnection connection) {
+				ArrayList<KeyValuePair> headers = new ArrayList<KeyValuePair>();
+				Map<String, List<String>> fields = connection.getHeaderFields();
+				if (fields != null) {
+					for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+						if (field.getKey() == null) {
+							// the status line
+							continue;
+						}
+						for (String value : field.getValue()) {
+							headers.add(new KeyValuePair(field.getKey(), value));
+						}
+					}
+				}
+				return headers;
+			}
+
+			static class CacheControl {
+				boolean noCache;
+				boolean noStore;
+				boolean mustRevalidate;
+				boolean isPublic;
+				long maxAgeSeconds = -1;
+
+				static CacheControl parse(String value) {
+					CacheControl cacheControl = new CacheControl();
+					if (value == null) {
+						return cacheControl;
+					}
+
+					for (String directive : value.split(",")) {
+						String trimmed = directive.trim().toLowerCase(Locale.ENGLISH);
+						if (trimmed.startsWith("no-cache")) {
+							cacheControl.noCache = true;
+						} else if (trimmed.equals("no-store")) {
+							cacheControl.noStore = true;
+						} else if (trimmed.equals("must-revalidate")) {
+							cacheControl.mustRevalidate = true;
+						} else if (trimmed.equals("public")) {
+							cacheControl.isPublic = true;
+						} else if (trimmed.startsWith("max-age=")) {
+							try {
+								cacheControl.maxAgeSeconds = Long.parseLong(trimmed.substring(8).replace("\"", "").trim());
+							} catch (NumberFormatException e) {
+								// a malformed max-age makes the response stale
+								cacheControl.maxAgeSeconds = 0;
+							}
+						}
+					}
+
+					return cacheControl;
+				}
+			}
+
+			static class Entry implements Closeable {
+				String url;
+				int statusCode;
+				String statusText;
+				long requestTime;
+				long responseTime;
+				ArrayList<KeyValuePair> varyHeaders = new ArrayList<KeyValuePair>();
+				ArrayList<KeyValuePair> headers = new ArrayList<KeyValuePair>();
+				CacheControl requestCacheControl;
+				DiskLruCache.Snapshot snapshot;
+
+				static Entry read(DiskLruCache.Snapshot snapshot) throws IOException {
+					Entry entry = new Entry();
+					entry.snapshot = snapshot;
+					String[] lines = snapshot.getString(ENTRY_METADATA).split("\n", -1);
+					int index = 0;
+					entry.url = lines[index++];
+					entry.statusCode = Integer.parseInt(lines[index++]);
+					entry.statusText = lines[index++];
+					entry.requestTime = Long.parseLong(lines[index++]);
+					entry.responseTime = Long.parseLong(lines[index++]);
+					index = readHeaderLines(lines, index, entry.varyHeaders);
+					readHeaderLines(lines, index, entry.headers);
+					return entry;
+				}
+
+				private static int readHeaderLines(String[] lines, int index, ArrayList<KeyValuePair> into) {
+					int count = Integer.parseInt(lines[index++]);
+					for (int i = 0; i < count; i++) {
+						String line = lines[index++];
+						int separator = line.indexOf(':');
+						into.add(new KeyValuePair(line.substring(0, separator), line.substring(separator + 1)));
+					}
+					return index;
+				}
+
+				String writeMetadata() {
+					StringBuilder sb = new StringBuilder();
+					sb.append(url).append('\n');
+					sb.append(statusCode).append('\n');
+					sb.append(statusText != null ? statusText : "").append('\n');
+					sb.append(requestTime).append('\n');
+					sb.append(responseTime).append('\n');
+					writeHeaderLines(sb, varyHeaders);
+					writeHeaderLines(sb, headers);
+					return sb.toString();
+				}
+
+				private static void writeHeaderLines(StringBuilder sb, ArrayList<KeyValuePair> headers) {
+					sb.append(headers.size()).append('\n');
+					for (KeyValuePair pair : headers) {
+						sb.append(pair.key).append(':').append(pair.value != null ? pair.value : "").append('\n');
+					}
+				}
+
+				String getHeader(String name) {
+					for (KeyValuePair pair : headers) {
+						if (name.equalsIgnoreCase(pair.key)) {
+							return pair.value;
+						}
+					}
+					return null;
+				}
+
+				void setHeader(String name, String value) {
+					removeHeader(name);
+					headers.add(new KeyValuePair(name, value));
+				}
+
+				void removeHeader(String name) {
+					for (int i = headers.size() - 1; i >= 0; i--) {
+						if (name.equalsIgnoreCase(headers.get(i).key)) {
+							headers.remove(i);
+						}
+					}
+				}
+
+				boolean matchesVary(RequestOptions options) {
+					for (KeyValuePair pair : varyHeaders) {
+						String value = options.getVaryValue(pair.key);
+						if (value == null ? pair.value.length() != 0 : !value.equals(pair.value)) {
+							return false;
+						}
+					}
+					return true;
+				}
+
+				/**
+				 * Whether the entry may be served without contacting the server (RFC 7234, section 4.2).
+				 */
+				boolean isFresh(long now) {
+					CacheControl responseCacheControl = CacheControl.parse(getHeader("Cache-Control"));
+					if (responseCacheControl.noCache || requestCacheControl.noCache || getHeader("Pragma") != null && getHeader("Pragma").contains("no-cache")) {
+						return false;
+					}
+
+					long lifetime = getFreshnessLifetime(responseCacheControl);
+					if (requestCacheControl.maxAgeSeconds >= 0) {
+						lifetime = Math.min(lifetime, requestCacheControl.maxAgeSeconds * 1000);
+					}
+
+					return getAge(now) < lifetime;
+				}
+
+				boolean canRevalidate() {
+					return getHeader("ETag") != null || getHeader("Last-Modified") != null;
+				}
+
+				void addConditionalHeaders(HttpURLConnection connection) {
+					String etag = getHeader("ETag");
+					if (etag != null) {
+						connection.setRequestProperty("If-None-Match", etag);
+					}
+					String lastModified = getHeader("Last-Modified");
+					if (lastModified != null) {
+						connection.setRequestProperty("If-Modified-Since", lastModified);
+					}
+				}
+
+				private long getFreshnessLifetime(CacheControl responseCacheControl) {
+					if (responseCacheControl.maxAgeSeconds >= 0) {
+						return responseCacheControl.maxAgeSeconds * 1000;
+					}
+
+					long servedDate = parseHttpDate(getHeader("Date"));
+					long base = servedDate != -1 ? servedDate : responseTime;
+					String expiresHeader = getHeader("Expires");
+					if (expiresHeader != null) {
+						long expires = parseHttpDate(expiresHeader);
+						// an invalid Expires value means already expired
+						return expires != -1 ? Math.max(0, expires - base) : 0;
+					}
+
+					long lastModified = parseHttpDate(getHeader("Last-Modified"));
+					if (lastModified != -1 && !url.contains("?") && base > lastModified) {
+						return Math.min((base - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+					}
+
+					return 0;
+				}
+
+				private long getAge(long now) {
+					long servedDate = parseHttpDate(getHeader("Date"));
+					long apparentAge = servedDate != -1 ? Math.max(0, responseTime - servedDate) : 0;
+					String ageHeader = getHeader("Age");
+					if (ageHeader != null) {
+						try {
+							apparentAge = Math.max(apparentAge, Long.parseLong(ageHeader.trim()) * 1000);
+						} catch (NumberFormatException e) {
+							// ignore a malformed Age header
+						}
+					}
+					return apparentAge + (responseTime - requestTime) + (now - responseTime);
+				}
+
+				void applyTo(RequestResult result, RequestOptions options) throws IOException {
+					result.statusCode = statusCode;
+					result.statusText = statusText;
+					result.setHeaders(headers);
+					result.contentType = getHeader("Content-Type");
+					result.fromCache = true;
+
+					InputStream inStream = snapshot.getInputStream(ENTRY_BODY);
+					try {
+						if (options.directBufferResponse) {
+							// available() is not a length, let the body size itself
+							result.setBody(RequestResult.readDirect(inStream, -1), options);
+							return;
+						}
+
+						RequestResult.ByteArrayOutputStream2 body = new RequestResult.ByteArrayOutputStream2();
+						byte[] buff = new byte[4096];
+						int read;
+						while ((read = inStream.read(buff, 0, buff.length)) != -1) {
+							body.write(buff, 0, read);
+						}
+						result.setBody(body, options);
+					} finally {
+						inStream.close();
+					}
+				}
+
+				@Override
+				public void close() {
+					DiskLruCache.closeQuietly(snapshot);
+				}
+			}
+
+			static long parseHttpDate(String value) {
+				if (value == null) {
+					return -1;
+				}
+				SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+				format.setTimeZone(TimeZone.getTimeZone("GMT"));
+				try {
+					return format.parse(value.trim()).getTime();
+				} catch (Exception e) {
+					return -1;
+				}
+			}
+		}
+
+		public static class KeyValuePair {
+			public String key;
+			public String value;
+
+			public KeyValuePair(String key, String value) {
+				this.key = key;
+				this.value = value;
+			}
+		}
+
+		public static class RequestOptions {
+			public String url;
+			public String method;
+			public ArrayList<KeyValuePair> headers;
+			public Object content;
+			// applies to both connecting and reading unless connectTimeout or readTimeout is set
+			public int timeout = -1;
+			public int connectTimeout = -1;
+			public int readTimeout = -1;
+			// deadline for the whole request, including the time spent waiting in the queue
+			public int totalTimeout = -1;
+			// one of the Async.PRIORITY_* classes
+			public int priority = PRIORITY_DEFAULT;
+
+			// progress is reported at most once per progressInterval milliseconds, the default is about one frame
+			public ProgressCallback uploadProgressCallback;
+			public ProgressCallback downloadProgressCallback;
+			public int progressInterval = 16;
+			public int screenWidth = -1;
+			public int screenHeight = -1;
+			public boolean dontFollowRedirects = false;
+
+			/*
+			 * When either destination is set, a successful (< 400) response body is streamed there through
+			 * a small fixed buffer instead of being held in memory; RequestResult.bytesWritten reports the size.
+			 * The channel is owned by the caller and is not closed by the request.
+			 */
+			public String responseFilePath;
+			public WritableByteChannel responseChannel;
+
+			/*
+			 * Reads the response body into a direct ByteBuffer, the same kind File.readBuffer returns, so it can
+			 * cross into JS as an ArrayBuffer without another copy. RequestResult.getResponseBytes returns it and
+			 * RequestResult.raw stays null.
+			 */
+			public boolean directBufferResponse;
+
+			// share the exchange with identical GET/HEAD requests already in flight, see Http.SharedRequest
+			public boolean deduplicate;
+			// the request headers that make two requests different, all of them when null
+			public String[] deduplicationHeaders;
+
+			/*
+			 * Retries for idempotent methods with a replayable body, on connection failures, timeouts and retryStatusCodes
+			 * (408, 429, 502, 503 and 504 when null). The delay before retry n is random, up to retryBaseDelay * 2^(n-1)
+			 * and never above retryMaxDelay.
+			 */
+			public int maxRetries = 0;
+			public long retryBaseDelay = 200;
+			public long retryMaxDelay = 5000;
+			public int[] retryStatusCodes;
+
+			/*
+			 * Hedging starts a second attempt of a GET, HEAD or OPTIONS request when the first one is still running after
+			 * hedgeDelay milliseconds, or, when that is negative, after the host's hedgePercentile total time (see
+			 * Http.getTimingHistogram). The first to finish is used and the other one is cancelled.
+			 */
+			public boolean hedge;
+			public double hedgePercentile = 95;
+			public long hedgeDelay = -1;
+
+			/*
+			 * Compresses the request body on the fly with "gzip" or "deflate" and sends it chunked with a matching
+			 * Content-Encoding header. Bodies of known length below compressionThreshold bytes, and bodies that already
+			 * have a Content-Encoding header, are sent as they are.
+			 */
+			public String requestCompression;
+			public int compressionThreshold = 1024;
+
+			/**
+			 * Returns the first request header with the given name, ignoring case.
+			 */
+			public String getHeader(String name) {
+				if (this.headers == null) {
+					return null;
+				}
+
+				for (KeyValuePair pair : this.headers) {
+					if (name.equalsIgnoreCase(pair.key)) {
+						return pair.value;
+					}
+				}
+
+				return null;
+			}
+
+			static final String ACCEPT_ENCODING = "gzip, deflate";
+
+			String getVaryValue(String name) {
+				String value = getHeader(name);
+				if (value == null && "Accept-Encoding".equalsIgnoreCase(name)) {
+					// see addHeaders
+					return ACCEPT_ENCODING;
+				}
+
+				return value;
+			}
+
+			public void addHeaders(HttpURLConnection connection) {
+				if (this.headers == null) {
+					return;
+				}
+				boolean hasAcceptHeader = false;
+
+				for (KeyValuePair pair : this.headers) {
+					String key = pair.key;
+					connection.addRequestProperty(key, pair.value);
+					if (key.toLowerCase().contentEquals("accept-encoding")) {
+						hasAcceptHeader = true;
+					}
+				}
+
+				// If the user hasn't added an Accept-Encoding header, we add the encodings readResponseStream can decode
+				if (!hasAcceptHeader) {
+					connection.addRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+				}
+			}
+
+			/*
+			 * The request body may be a String (sent as UTF-8), a byte[], a heap or direct ByteBuffer
+			 * (its remaining bytes are sent), a java.io.File, a ReadableByteChannel or an InputStream.
+			 * Channels and streams are consumed and closed by the request; set contentLength when their
+			 * size is known so the body is sent with a fixed length instead of chunked. GET and HEAD
+			 * requests are sent without the body, as XMLHttpRequest does.
+			 */
+			public long contentLength = -1;
+
+			public void writeContent(HttpURLConnection connection, Stack<Closeable> openedStreams) throws IOException {
+				writeContent(connection, openedStreams, null, null);
+			}
+
+			/**
+			 * Opening the output stream connects, so that moment ends the connect stage of the timing.
+			 */
+			void writeContent(HttpURLConnection connection, Stack<Closeable> openedStreams, ProgressReporter progress, RequestTiming timing) throws IOException {
+				if (this.content == null) {
+					return;
+				}
+
+				// setDoOutput(true) would quietly turn the request into a POST
+				String method = connection.getRequestMethod();
+				if (GET_METHOD.equals(method) || HEAD_METHOD.equals(method)) {
+					if (this.content instanceof Closeable) {
+						openedStreams.push((Closeable) this.content);
+					}
+					return;
+				}
+
+				Object body = this.content instanceof String ? ((String) this.content).getBytes(StandardCharsets.UTF_8) : this.content;
+
+				// stream the body as it is written instead of letting HttpURLConnection buffer all of it first
+				long length = getContentLength(body);
+				String coding = getRequestCoding(length);
+				connection.setDoOutput(true);
+				if (coding != null) {
+					connection.setRequestProperty("Content-Encoding", coding);
+					connection.setChunkedStreamingMode(0);
+				} else if (length >= 0) {
+					connection.setFixedLengthStreamingMode(length);
+				} else {
+					connection.setChunkedStreamingMode(0);
+				}
+
+				OutputStream outStream = connection.getOutputStream();
+				openedStreams.push(outStream);
+				if (timing != null) {
+					timing.connect = timing.lap();
+				}
+
+				CountingOutputStream encoded = null;
+				CountingOutputStream decoded = null;
+				Deflater deflater = null;
+				DeflaterOutputStream compressor = null;
+				if (coding != null) {
+					encoded = new CountingOutputStream(outStream);
+					deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, "gzip".equals(coding));
+					compressor = "gzip".equals(coding) ? new GzipOutputStream(encoded, deflater) : new DeflaterOutputStream(encoded, deflater, 8192);
+					outStream = decoded = new CountingOutputStream(compressor);
+				}
+
+				if (progress != null) {
+					progress.setTotal(length);
+					outStream = new ProgressOutputStream(outStream, progress);
+				}
+
+				long cpuStart = compressor != null ? Debug.threadCpuTimeNanos() : -1;
+				try {
+					writeBody(body, outStream, openedStreams);
+					if (compressor != null) {
+						compressor.finish();
+						if (timing != null) {
+							timing.requestBodyBytes = decoded.count;
+							timing.requestBodyEncodedBytes = encoded.count;
+							timing.compressionCpuTimeMicros = cpuStart >= 0 ? (Debug.threadCpuTimeNanos() - cpuStart) / 1000 : -1;
+						}
+					}
+				} finally {
+					if (deflater != null) {
+						deflater.end();
+					}
+				}
+				if (timing != null) {
+					timing.send = timing.lap();
+				}
+			}
+
+			private String getRequestCoding(long length) {
+				if (this.requestCompression == null || getHeader("Content-Encoding") != null) {
+					return null;
+				}
+
+				String coding = this.requestCompression.toLowerCase(Locale.ENGLISH);
+				if (!"gzip".equals(coding) && !"deflate".equals(coding)) {
+					throw new IllegalArgumentException("Unsupported request compression: " + this.requestCompression);
+				}
+
+				return length < 0 || length >= this.compressionThreshold ? coding : null;
+			}
+
+			/**
+			 * A GZIPOutputStream over a caller-owned Deflater (GZIPOutputStream can only create its own), so that
+			 * both encodings share the same setup and clean-up.
+			 */
+			private static final class GzipOutputStream extends DeflaterOutputStream {
+				private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+				private final CRC32 crc = new CRC32();
+				private boolean headerWritten;
+				private boolean finished;
+
+				GzipOutputStream(OutputStream out, Deflater deflater) {
+					super(out, deflater, 8192);
+				}
+
+				@Override
+				public void write(byte[] buffer, int offset, int length) throws IOException {
+					if (!headerWritten) {
+						out.write(HEADER);
+						headerWritten = true;
+					}
+					super.write(buffer, offset, length);
+					crc.update(buffer, offset, length);
+				}
+
+				@Override
+				public void finish() throws IOException {
+					if (finished) {
+						return;
+					}
+					if (!headerWritten) {
+						out.write(HEADER);
+						headerWritten = true;
+					}
+					super.finish();
+					long size = def.getBytesRead();
+					byte[] trailer = new byte[8];
+					writeInt(trailer, 0, crc.getValue());
+					writeInt(trailer, 4, size);
+					out.write(trailer);
+					finished = true;
+				}
+
+				private static void writeInt(byte[] buffer, int offset, long value) {
+					buffer[offset] = (byte) value;
+					buffer[offset + 1] = (byte) (value >> 8);
+					buffer[offset + 2] = (byte) (value >> 16);
+					buffer[offset + 3] = (byte) (value >> 24);
+				}
+			}
+
+			private long getContentLength(Object body) {
+				if (body instanceof byte[]) {
+					return ((byte[]) body).length;
+				} else if (body instanceof ByteBuffer) {
+					return ((ByteBuffer) body).remaining();
+				} else if (body instanceof java.io.File) {
+					return ((java.io.File) body).length();
+				}
+
+				return this.contentLength;
+			}
+
+			private static void writeBody(Object body, OutputStream outStream, Stack<Closeable> openedStreams) throws IOException {
+				if (body instanceof byte[]) {
+					outStream.write((byte[]) body);
+				} else if (body instanceof ByteBuffer) {
+					ByteBuffer buffer = ((ByteBuffer) body).duplicate();
+					if (buffer.hasArray()) {
+						outStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+					} else {
+						// direct buffers have no backing array, drain them in small chunks
+						byte[] buff = new byte[8192];
+						while (buffer.hasRemaining()) {
+							int count = Math.min(buff.length, buffer.remaining());
+							buffer.get(buff, 0, count);
+							outStream.write(buff, 0, count);
+						}
+					}
+				} else if (body instanceof java.io.File) {
+					FileInputStream inStream = new FileInputStream((java.io.File) body);
+					openedStreams.push(inStream);
+					copyStream(inStream, outStream);
+				} else if (body instanceof InputStream) {
+					openedStreams.push((InputStream) body);
+					copyStream((InputStream) body, outStream);
+				} else if (body instanceof ReadableByteChannel) {
+					ReadableByteChannel channel = (ReadableByteChannel) body;
+					openedStreams.push(channel);
+					ByteBuffer buffer = ByteBuffer.allocate(8192);
+					while (channel.read(buffer) != -1) {
+						buffer.flip();
+						outStream.write(buffer.array(), 0, buffer.limit());
+						buffer.clear();
+					}
+				} else {
+					throw new IllegalArgumentException("Unsupported request content type: " + body.getClass().getName());
+				}
+			}
+
+			private static void copyStream(InputStream inStream, OutputStream outStream) throws IOException {
+				byte[] buff = new byte[8192];
+				int read;
+				while ((read = inStream.read(buff, 0, buff.length)) != -1) {
+					outStream.write(buff, 0, read);
+				}
+			}
+		}
+
+		public static class RequestResult {
+			public static final int ERROR_NONE = 0;
+			public static final int ERROR_CANCELLED = 1;
+			// the totalTimeout deadline was exceeded
+			public static final int ERROR_TIMEOUT = 2;
+			public static final int ERROR_CONNECT_TIMEOUT = 3;
+			// the connection was up but the server stopped taking the request body or sending the response
+			public static final int ERROR_READ_TIMEOUT = 4;
+			public static final int ERROR_FAILED = 5;
+
+			public ByteArrayOutputStream raw;
+			public int statusCode;
+			public Exception error;
+			public int errorCode = ERROR_NONE;
+			public String url;
+			public String statusText;
+			public String contentType;
+			public long bytesWritten = -1;
+			public boolean fromCache;
+			public final RequestTiming timing = new RequestTiming();
+
+			// conversions of the body are made on first access only
+			private ByteArrayOutputStream2 body;
+			private ByteBuffer directBody;
+			private String responseAsString;
+			private Bitmap responseAsImage;
+			private boolean imageDecoded;
+			private int screenWidth = -1;
+			private int screenHeight = -1;
+
+			// the response headers as flat name/value pairs: name0, value0, name1, value1, ...
+			private String[] headerFields = EMPTY_HEADER_FIELDS;
+			private int headerCount;
+			private ArrayList<KeyValuePair> headerList;
+			// set once readResponseStream has read the body to its end, which lets the engine keep the connection alive
+			boolean drained;
+
+			private static final String[] EMPTY_HEADER_FIELDS = new String[0];
+
+			/**
+			 * Reads the response headers by index, which spares the connection from building its header map.
+			 * The status line, which some implementations return as a header without a name, is left out.
+			 */
+			public void getHeaders(HttpURLConnection connection) {
+				String[] fields = new String[32];
+				int count = 0;
+				for (int i = 0; ; i++) {
+					String value = connection.getHeaderField(i);
+					if (value == null) {
+						// no more headers, or none at all if there is no internet connection currently available
+						break;
+					}
+
+					String key = connection.getHeaderFieldKey(i);
+					if (key == null) {
+						continue;
+					}
+
+					if (count * 2 == fields.length) {
+						fields = Arrays.copyOf(fields, fields.length * 2);
+					}
+					fields[count * 2] = key;
+					fields[count * 2 + 1] = value;
+					count++;
+				}
+
+				this.headerFields = count > 0 ? fields : EMPTY_HEADER_FIELDS;
+				this.headerCount = count;
+			}
+
+			void setHeaders(List<KeyValuePair> headers) {
+				String[] fields = new String[headers.size() * 2];
+				int count = 0;
+				for (KeyValuePair pair : headers) {
+					fields[count * 2] = pair.key;
+					fields[count * 2 + 1] = pair.value;
+					count++;
+				}
+
+				this.headerFields = fields;
+				this.headerCount = count;
+			}
+
+			/**
+			 * Returns the response headers as one flat name/value array, so that JS can fetch them all with a single call.
+			 */
+			public String[] getHeaderFields() {
+				if (this.headerCount * 2 == this.headerFields.length) {
+					return this.headerFields;
+				}
+				return Arrays.copyOf(this.headerFields, this.headerCount * 2);
+			}
+
+			public int getHeaderCount() {
+				return this.headerCount;
+			}
+
+			public String getHeaderName(int index) {
+				return this.headerFields[index * 2];
+			}
+
+			public String getHeaderValue(int index) {
+				return this.headerFields[index * 2 + 1];
+			}
+
+			/**
+			 * Returns the first response header with the given name, ignoring case.
+			 */
+			public String getHeader(String name) {
+				for (int i = 0; i < this.headerCount; i++) {
+					if (name.equalsIgnoreCase(this.headerFields[i * 2])) {
+						return this.headerFields[i * 2 + 1];
+					}
+				}
+
+				return null;
+			}
+
+			/**
+			 * Returns the response headers as KeyValuePair objects, created on first access.
+			 */
+			public synchronized ArrayList<KeyValuePair> getHeaderList() {
+				if (this.headerList == null) {
+					this.headerList = new ArrayList<KeyValuePair>(this.headerCount);
+					for (int i = 0; i < this.headerCount; i++) {
+						this.headerList.add(new KeyValuePair(this.headerFields[i * 2], this.headerFields[i * 2 + 1]));
+					}
+				}
+
+				return this.headerList;
+			}
+
+			public void readResponseStream(HttpURLConnection connection, Stack<Closeable> openedStreams, RequestOptions options) throws IOException {
+				readResponseStream(connection, openedStreams, options, null);
+			}
+
+			void readResponseStream(HttpURLConnection connection, Stack<Closeable> openedStreams, RequestOptions options, ProgressReporter progress) throws IOException {
+				int contentLength = connection.getContentLength();
+
+				InputStream inStream =
+					this.statusCode >= 400
+						? connection.getErrorStream()
+						: connection.getInputStream();
+
+				if (inStream == null) {
+					// inStream is null when receiving status code 401 or 407
+					// see this thread for more information http://stackoverflow.com/a/24986433
+					return;
+				}
+
+				InputStream wire = inStream;
+				// progress counts bytes on the wire so that it lines up with Content-Length
+				if (progress != null) {
+					progress.setTotal(contentLength);
+					inStream = new ProgressInputStream(inStream, progress);
+				}
+
+				// In the event we don't have a null stream, and we have gzip or deflate as part of the encoding
+				// then we will decode the stream
+				// Ignore the encoding of an empty body (204 'No Content', 304, Content-Length: 0): both decoders throw
+				// java.io.EOFException when there is not even a header to read
+				String coding = getContentCoding(connection.getHeaderField("Content-Encoding"));
+				if (coding != null && (this.statusCode == 204 || contentLength == 0)) {
+					coding = null;
+				} else if (coding != null) {
+					PushbackInputStream pushback = new PushbackInputStream(inStream, 1);
+					inStream = pushback;
+					if (isEmpty(pushback)) {
+						coding = null;
+					}
+				}
+				CountingInputStream encoded = null;
+				CountingInputStream decoded = null;
+				if (coding != null) {
+					inStream = encoded = new CountingInputStream(inStream);
+					inStream = "gzip".equals(coding) ? new GZIPInputStream(inStream) : inflate(inStream);
+					inStream = decoded = new CountingInputStream(inStream);
+				}
+
+				openedStreams.push(inStream);
+
+				long cpuStart = decoded != null ? Debug.threadCpuTimeNanos() : -1;
+				// the Content-Length of an encoded response says nothing about the decoded size
+				readBody(inStream, openedStreams, options, decoded != null ? -1 : contentLength);
+				if (decoded != null) {
+					this.timing.responseBodyBytes = decoded.count;
+					this.timing.responseBodyEncodedBytes = encoded.count;
+					this.timing.decompressionCpuTimeMicros = cpuStart >= 0 ? (Debug.threadCpuTimeNanos() - cpuStart) / 1000 : -1;
+				}
+
+				// a decoder stops at its own trailer, which can leave the end of a chunked body unread
+				this.drained = drain(wire);
+			}
+
+			// the most read from a leftover body to keep its connection; anything longer is cheaper to reconnect than to read
+			private static final int MAX_DRAIN_BYTES = 8192;
+
+			/**
+			 * Reads what is left of a response body, so that the socket is positioned at the next response.
+			 */
+			static boolean drain(InputStream wire) {
+				try {
+					byte[] scratch = new byte[512];
+					int left = MAX_DRAIN_BYTES;
+					int read;
+					while ((read = wire.read(scratch, 0, Math.min(scratch.length, left + 1))) != -1) {
+						left -= read;
+						if (left < 0) {
+							return false;
+						}
+					}
+					return true;
+				} catch (IOException e) {
+					return false;
+				}
+			}
+
+			static String getContentCoding(String header) {
+				if (header == null) {
+					return null;
+				}
+
+				String lower = header.toLowerCase(Locale.ENGLISH);
+				if (lower.contains("gzip")) {
+					return "gzip";
+				} else if (lower.contains("deflate")) {
+					return "deflate";
+				}
+
+				return null;
+			}
+
+			/**
+			 * Whether the stream ends before its first byte. The byte read is pushed back.
+			 */
+			private static boolean isEmpty(PushbackInputStream inStream) throws IOException {
+				int first = inStream.read();
+				if (first == -1) {
+					return true;
+				}
+				inStream.unread(first);
+				return false;
+			}
+
+			/**
+			 * HTTP "deflate" is supposed to be zlib wrapped, but some servers send a raw deflate stream; the first two bytes tell them apart.
+			 */
+			static InputStream inflate(InputStream inStream) throws IOException {
+				PushbackInputStream pushback = new PushbackInputStream(inStream, 2);
+				byte[] header = new byte[2];
+				int count = 0;
+				int read;
+				while (count < 2 && (read = pushback.read(header, count, 2 - count)) != -1) {
+					count += read;
+				}
+				if (count > 0) {
+					pushback.unread(header, 0, count);
+				}
+
+				boolean zlib = count == 2 && (header[0] & 0x0f) == Deflater.DEFLATED && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+				final Inflater inflater = new Inflater(!zlib);
+				return new InflaterInputStream(pushback, inflater, 8192) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							inflater.end();
+						}
+					}
+				};
+			}
+
+			private void readBody(InputStream inStream, Stack<Closeable> openedStreams, RequestOptions options, int contentLength) throws IOException {
+				if (this.statusCode < 400 && (options.responseFilePath != null || options.responseChannel != null)) {
+					this.bytesWritten = this.streamResponse(inStream, options);
+					return;
+				}
+
+				if (options.directBufferResponse) {
+					this.setBody(readDirect(inStream, contentLength), options);
+					return;
+				}
+
+				BufferedInputStream buffer = new BufferedInputStream(inStream, 4096);
+				openedStreams.push(buffer);
+
+				ByteArrayOutputStream2 responseStream = contentLength != -1 ? new ByteArrayOutputStream2(contentLength) : new ByteArrayOutputStream2();
+				openedStreams.push(responseStream);
+
+				byte[] buff = new byte[4096];
+				int read = -1;
+				while ((read = buffer.read(buff, 0, buff.length)) != -1) {
+					responseStream.write(buff, 0, read);
+				}
+
+				buff = null;
+				this.setBody(responseStream, options);
+			}
+
+			static RequestResult aborted(String url, int reason) {
+				RequestResult result = new RequestResult();
+				result.url = url;
+				result.errorCode = reason;
+				result.error = abortException(reason);
+				return result;
+			}
+
+			static IOException abortException(int reason) {
+				if (reason == ERROR_TIMEOUT) {
+					return new SocketTimeoutException("Request deadline exceeded");
+				}
+				return new InterruptedIOException("Request cancelled");
+			}
+
+			void setBody(ByteArrayOutputStream2 responseStream, RequestOptions options) {
+				this.raw = responseStream;
+				this.body = responseStream;
+				this.screenWidth = options.screenWidth;
+				this.screenHeight = options.screenHeight;
+			}
+
+			void setBody(ByteBuffer buffer, RequestOptions options) {
+				this.directBody = buffer;
+				this.screenWidth = options.screenWidth;
+				this.screenHeight = options.screenHeight;
+			}
+
+			/**
+			 * Reads the whole stream into a direct buffer whose capacity is exactly the body length, since JS builds its
+			 * ArrayBuffer over the whole capacity. A known length is allocated up front; otherwise the body is collected
+			 * in a pooled buffer, doubled as needed, and copied out once its length is known.
+			 */
+			static ByteBuffer readDirect(InputStream inStream, int expectedLength) throws IOException {
+				ReadableByteChannel channel = java.nio.channels.Channels.newChannel(inStream);
+				ByteBuffer buffer = expectedLength > 0 ? ByteBuffer.allocateDirect(expectedLength) : DirectBufferPool.acquire();
+				boolean pooled = expectedLength <= 0;
+				try {
+					while (true) {
+						if (!buffer.hasRemaining()) {
+							// probe before growing, a presized buffer is usually exactly full
+							if (expectedLength > 0 && buffer.capacity() == expectedLength) {
+								int next = inStream.read();
+								if (next == -1) {
+									break;
+								}
+								buffer = grow(buffer, pooled);
+								pooled = false;
+								buffer.put((byte) next);
+							} else {
+								buffer = grow(buffer, pooled);
+								pooled = false;
+							}
+						}
+						if (channel.read(buffer) == -1) {
+							break;
+						}
+					}
+
+					buffer.flip();
+					// a presized buffer is exact unless the body came up short
+					if (!pooled && buffer.limit() == buffer.capacity()) {
+						return buffer;
+					}
+
+					ByteBuffer result = ByteBuffer.allocateDirect(buffer.remaining());
+					result.put(buffer);
+					result.flip();
+					return result;
+				} finally {
+					if (pooled) {
+						DirectBufferPool.release(buffer);
+					}
+				}
+			}
+
+			private static ByteBuffer grow(ByteBuffer buffer, boolean pooled) {
+				int capacity = buffer.capacity();
+				if (capacity == Integer.MAX_VALUE) {
+					throw new OutOfMemoryError("Response body does not fit in a ByteBuffer");
+				}
+				ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, capacity * 2L));
+				buffer.flip();
+				grown.put(buffer);
+				if (pooled) {
+					DirectBufferPool.release(buffer);
+				}
+				return grown;
+			}
+
+			/**
+			 * Returns a view over the response body bytes without copying them, or null if there is no body.
+			 */
+			public ByteBuffer getResponseBytes() {
+				if (this.directBody != null) {
+					return this.directBody.duplicate();
+				}
+				if (this.body == null) {
+					return null;
+				}
+
+				return ByteBuffer.wrap(this.body.buf(), 0, this.body.size());
+			}
+
+			/**
+			 * Decodes the response body using the charset from the Content-Type header (UTF-8 if there is none).
+			 * The string is created on first access and cached.
+			 */
+			public synchronized String getResponseAsString() {
+				if (this.responseAsString == null && this.body != null) {
+					long start = SystemClock.elapsedRealtime();
+					this.responseAsString = new String(this.body.buf(), 0, this.body.size(), getCharset(this.contentType));
+					this.timing.addDecodeTime(SystemClock.elapsedRealtime() - start);
+				} else if (this.responseAsString == null && this.directBody != null) {
+					long start = SystemClock.elapsedRealtime();
+					this.responseAsString = getCharset(this.contentType).decode(this.directBody.duplicate()).toString();
+					this.timing.addDecodeTime(SystemClock.elapsedRealtime() - start);
+				}
+
+				return this.responseAsString;
+			}
+
+			/**
+			 * Decodes the response body as a bitmap on first access, scaled down to the screen size if needed.
+			 * Only image/* and untyped (or octet-stream) responses are decoded, all other content types return null.
+			 */
+			public synchronized Bitmap getResponseAsImage() {
+				if (!this.imageDecoded) {
+					this.imageDecoded = true;
+					if (this.body != null && mayBeImage(this.contentType)) {
+						long start = SystemClock.elapsedRealtime();
+						this.responseAsImage = decodeImage(this.body.buf(), this.body.size(), this.screenWidth, this.screenHeight);
+						this.timing.addDecodeTime(SystemClock.elapsedRealtime() - start);
+					} else if (this.directBody != null && mayBeImage(this.contentType)) {
+						// BitmapFactory only decodes from heap memory
+						long start = SystemClock.elapsedRealtime();
+						byte[] data = new byte[this.directBody.remaining()];
+						this.directBody.duplicate().get(data);
+						this.responseAsImage = decodeImage(data, data.length, this.screenWidth, this.screenHeight);
+						this.timing.addDecodeTime(SystemClock.elapsedRealtime() - start);
+					}
+				}
+
+				return this.responseAsImage;
+			}
+
+			static boolean mayBeImage(String contentType) {
+				if (contentType == null) {
+					// we do not have some explicit way to determine whether the content is an image
+					return true;
+				}
+
+				String mimeType = contentType.toLowerCase(Locale.ENGLISH);
+				return mimeType.startsWith("image/") || mimeType.startsWith("application/octet-stream") || mimeType.startsWith("binary/octet-stream");
+			}
+
+			static Charset getCharset(String contentType) {
+				if (contentType != null) {
+					for (String parameter : contentType.split(";")) {
+						String trimmed = parameter.trim();
+						if (trimmed.regionMatches(true, 0, "charset=", 0, 8)) {
+							String name = trimmed.substring(8).replace("\"", "").trim();
+							try {
+								return Charset.forName(name);
+							} catch (Exception e) {
+								Log.e(TAG, "Unsupported response charset " + name + ", falling back to UTF-8");
+							}
+							break;
+						}
+					}
+				}
+
+				return StandardCharsets.UTF_8;
+			}
+
+			static Bitmap decodeImage(byte[] data, int length, int screenWidth, int screenHeight) {
+				try {
+					BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+					bitmapOptions.inJustDecodeBounds = true;
+
+					// check the size of the bitmap first
+					BitmapFactory.decodeByteArray(data, 0, length, bitmapOptions);
+					if (bitmapOptions.outWidth > 0 && bitmapOptions.outHeight > 0) {
+						int scale = 1;
+						final int height = bitmapOptions.outHeight;
+						final int width = bitmapOptions.outWidth;
+
+						if ((screenWidth > 0 && bitmapOptions.outWidth > screenWidth) ||
+							(screenHeight > 0 && bitmapOptions.outHeight > screenHeight)) {
+							final int halfHeight = height / 2;
+							final int halfWidth = width / 2;
+
+							// scale down the image since it is larger than the
+							// screen resolution
+							while ((halfWidth / scale) > screenWidth && (halfHeight / scale) > screenHeight) {
+								scale *= 2;
+							}
+						}
+
+						bitmapOptions.inJustDecodeBounds = false;
+						bitmapOptions.inSampleSize = scale;
+						return BitmapFactory.decodeByteArray(data, 0, length, bitmapOptions);
+					}
+				} catch (Throwable t) {
+					Log.e(TAG, "Failed to decode byte array, Throwable: " + t.getMessage());
+				}
+
+				return null;
+			}
+
+			private long streamResponse(InputStream inStream, RequestOptions options) throws IOException {
+				if (options.responseChannel != null) {
+					return copyToChannel(inStream, options.responseChannel);
+				}
+
+				java.io.File file = new java.io.File(options.responseFilePath);
+				FileOutputStream outStream = null;
+				boolean completed = false;
+				try {
+					outStream = new FileOutputStream(file);
+					long written = copyToChannel(inStream, outStream.getChannel());
+					completed = true;
+					return written;
+				} finally {
+					if (outStream != null) {
+						try {
+							outStream.close();
+						} catch (IOException e) {
+							completed = false;
+							Log.e(TAG, "Failed to close stream, IOException: " + e.getMessage());
+						}
+					}
+					// don't leave a truncated download behind
+					if (!completed && !file.delete()) {
+						Log.e(TAG, "Failed to delete incomplete download: " + file.getPath());
+					}
+				}
+			}
+
+			private static long copyToChannel(InputStream inStream, WritableByteChannel channel) throws IOException {
+				byte[] buff = new byte[8192];
+				ByteBuffer wrapped = ByteBuffer.wrap(buff);
+				long written = 0;
+				int read;
+				while ((read = inStream.read(buff, 0, buff.length)) != -1) {
+					wrapped.clear();
+					wrapped.limit(read);
+					while (wrapped.hasRemaining()) {
+						channel.write(wrapped);
+					}
+					written += read;
+				}
+				return written;
+			}
+
+			public static final class ByteArrayOutputStream2 extends ByteArrayOutputStream {
+				public ByteArrayOutputStream2() {
+					super();
+				}
+
+				public ByteArrayOutputStream2(int size) {
+					super(size);
+				}
+
+				/**
+				 * Returns the internal buffer of this ByteArrayOutputStream, without copying.
+				 */
+				public synchronized byte[] buf() {
+					return this.buf;
+				}
+			}
+		}
+
+		static class HttpRequestTask {
+			private final CompleteCallback callback;
+			private final Object context;
+			private final RequestHandle handle;
+			ProgressReporter uploadProgress;
+			ProgressReporter downloadProgress;
+			String host;
+			long enqueuedAt;
+
+			public HttpRequestTask(CompleteCallback callback, Object context, RequestHandle handle) {
+				this.callback = callback;
+				this.context = context;
+				this.handle = handle;
+			}
+
+			protected RequestResult doInBackground(RequestOptions... params) {
+				RequestResult result = new RequestResult();
+				RequestTiming timing = result.timing;
+				timing.start();
+				if (this.enqueuedAt > 0) {
+					timing.queueWait = SystemClock.elapsedRealtime() - this.enqueuedAt;
+				}
+				long startedAt = SystemClock.elapsedRealtime();
+				Stack<Closeable> openedStreams = new Stack<Closeable>();
+				Engine engine = getEngine();
+				ResponseCache cache = getResponseCache();
+				ResponseCache.Entry cached = null;
+				HttpURLConnection connection = null;
+
+				try {
+					RequestOptions options = params[0];
+					URL url = new URL(options.url);
+
+					// set the request method
+					String requestMethod = options.method != null ? options.method.toUpperCase(Locale.ENGLISH) : GET_METHOD;
+
+					result.url = options.url;
+					long requestTime = System.currentTimeMillis();
+					if (cache != null) {
+						cached = cache.get(options, requestMethod);
+						if (cached != null) {
+							if (cached.isFresh(requestTime)) {
+								cached.applyTo(result, options);
+								cache.recordHit();
+								timing.total = SystemClock.elapsedRealtime() - startedAt;
+								return result;
+							}
+							if (!cached.canRevalidate()) {
+								cached.close();
+								cached = null;
+								cache.recordMiss();
+							}
+						}
+					}
+
+					timing.lap();
+					connection = engine.open(url);
+					this.handle.attach(connection);
+					connection.setRequestMethod(requestMethod);
+
+					// add the headers
+					options.addHeaders(connection);
+					if (cached != null) {
+						cached.addConditionalHeaders(connection);
+					}
+
+					// apply timeout
+					int connectTimeout = options.connectTimeout > 0 ? options.connectTimeout : options.timeout;
+					if (connectTimeout > 0) {
+						connection.setConnectTimeout(connectTimeout);
+					}
+					int readTimeout = options.readTimeout > 0 ? options.readTimeout : options.timeout;
+					if (readTimeout > 0) {
+						connection.setReadTimeout(readTimeout);
+					}
+
+					// don't follow redirect (30x) responses; by default, HttpURLConnection follows them.
+					if (options.dontFollowRedirects) {
+						connection.setInstanceFollowRedirects(false);
+					}
+
+					options.writeContent(connection, openedStreams, this.uploadProgress, timing);
+					if (this.uploadProgress != null) {
+						this.uploadProgress.flush();
+					}
+
+					// close the opened streams (saves copy-paste implementation
+					// in each method that throws IOException)
+					this.closeOpenedStreams(openedStreams);
+
+					connection.connect();
+					if (timing.connect < 0) {
+						timing.connect = timing.lap();
+					}
+
+					// build the result
+					result.statusCode = connection.getResponseCode();
+					timing.firstByte = timing.lap();
+					result.getHeaders(connection);
+					result.statusText = connection.getResponseMessage();
+					result.contentType = connection.getContentType();
+
+					// HEAD and 304 responses have no body to read
+					boolean reusable = true;
+					if (cached != null && result.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+						// the stored response is still valid, serve it with the refreshed headers
+						cache.update(cached, connection, requestTime, System.currentTimeMillis());
+						cached.applyTo(result, options);
+					} else {
+						if (!requestMethod.equals(HEAD_METHOD)) {
+							result.readResponseStream(connection, openedStreams, options, this.downloadProgress);
+							reusable = result.drained;
+							timing.bodyRead = timing.lap();
+							if (this.downloadProgress != null) {
+								this.downloadProgress.flush();
+							}
+						}
+						if (cached != null) {
+							// the server answered the revalidation with a new response
+							cache.recordMiss();
+						}
+						if (cache != null) {
+							cache.put(options, requestMethod, result, connection, requestTime, System.currentTimeMillis());
+						}
+					}
+
+					// close the opened streams (saves copy-paste implementation
+					// in each method that throws IOException)
+					this.closeOpenedStreams(openedStreams);
+
+					engine.release(connection, reusable);
+					connection = null;
+
+					timing.total = SystemClock.elapsedRealtime() - startedAt;
+					if (this.host != null) {
+						recordTiming(this.host, timing);
+					}
+
+					return result;
+				} catch (Exception e) // TODO: Catch all exceptions?
+				{
+					result.error = e;
+					if (e instanceof SocketTimeoutException) {
+						// timing.connect is set once the connection is up, by writeContent when it opens the body stream or
+						// after connect(); a timeout after that came from writing the body or waiting for the response
+						result.errorCode = timing.connect >= 0 ? RequestResult.ERROR_READ_TIMEOUT : RequestResult.ERROR_CONNECT_TIMEOUT;
+					} else {
+						result.errorCode = RequestResult.ERROR_FAILED;
+					}
+					timing.total = SystemClock.elapsedRealtime() - startedAt;
+
+					return result;
+				} finally {
+					try {
+						this.closeOpenedStreams(openedStreams);
+					} catch (IOException e) {
+						Log.e(TAG, "Failed to close opened streams, IOException: " + e.getMessage());
+					}
+
+					// the request failed somewhere along the way, the connection state is unknown
+					if (connection != null) {
+						engine.release(connection, false);
+					}
+
+					if (cached != null) {
+						cached.close();
+					}
+				}
+			}
+
+			protected void onPostExecute(final RequestResult result) {
+				if (result != null) {
+					this.callback.onComplete(result, this.context);
+				} else {
+					this.callback.onError("HttpRequestTask returns no result.", this.context);
+				}
+			}
+
+			private void closeOpenedStreams(Stack<Closeable> streams) throws IOException {
+				while (streams.size() > 0) {
+					Closeable stream = streams.pop();
+					stream.close();
+				}
+			}
+		}
+	}
+
+	public static class File {
+
+		private static ThreadPoolExecutor fileExecutor;
+		private static int fileThreadCount = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		private static final HashMap<String, PathQueue> pathQueues = new HashMap<String, PathQueue>();
+		private static final QueueMetrics waitMetrics = new QueueMetrics();
+		private static final QueueMetrics latencyMetrics = new QueueMetrics();
+		private static final AtomicInteger pendingTasks = new AtomicInteger();
+
+		/**
+		 * File work runs on its own executor, so that slow network requests and image decodes on the shared executor
+		 * cannot hold it up.
+		 */
+		static synchronized ThreadPoolExecutor fileExecutor() {
+			if (fileExecutor == null) {
+				fileExecutor = new ThreadPoolExecutor(fileThreadCount, fileThreadCount, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new PriorityThreadFactory(android.os.Process.THREAD_PRIORITY_BACKGROUND));
+				fileExecutor.allowCoreThreadTimeOut(true);
+			}
+
+			return fileExecutor;
+		}
+
+		private static ScheduledThreadPoolExecutor flushScheduler;
+
+		/**
+		 * Runs the delayed flushes of append writers, apart from the HTTP deadline timers.
+		 */
+		static synchronized ScheduledThreadPoolExecutor flushScheduler() {
+			if (flushScheduler == null) {
+				flushScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Async.File.Flush");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				flushScheduler.setRemoveOnCancelPolicy(true);
+			}
+
+			return flushScheduler;
+		}
+
+		public static synchronized void setThreadCount(int count) {
+			fileThreadCount = Math.max(1, count);
+			if (fileExecutor != null) {
+				// grow the maximum first, the core size may never exceed it
+				if (fileThreadCount > fileExecutor.getMaximumPoolSize()) {
+					fileExecutor.setMaximumPoolSize(fileThreadCount);
+					fileExecutor.setCorePoolSize(fileThreadCount);
+				} else {
+					fileExecutor.setCorePoolSize(fileThreadCount);
+					fileExecutor.setMaximumPoolSize(fileThreadCount);
+				}
+			}
+		}
+
+		public static synchronized int getThreadCount() {
+			return fileThreadCount;
+		}
+
+		/**
+		 * Returns the number of file tasks not started yet, including those waiting behind a task on the same path.
+		 */
+		public static int getQueueDepth() {
+			return pendingTasks.get();
+		}
+
+		/**
+		 * Returns the average time in milliseconds file tasks waited before they started.
+		 */
+		public static long getAverageWaitTime() {
+			return waitMetrics.getAverageWaitTime();
+		}
+
+		public static long getMaxWaitTime() {
+			return waitMetrics.getMaxWaitTime();
+		}
+
+		/**
+		 * Returns the average time in milliseconds from queueing a file task to its end.
+		 */
+		public static long getAverageLatency() {
+			return latencyMetrics.getAverageWaitTime();
+		}
+
+		public static long getMaxLatency() {
+			return latencyMetrics.getMaxWaitTime();
+		}
+
+		public static long getCompletedTaskCount() {
+			return latencyMetrics.getCount();
+		}
+
+		public static void resetMetrics() {
+			waitMetrics.reset();
+			latencyMetrics.reset();
+		}
+
+		/**
+		 * Runs the task on the file executor after every task queued earlier for the same path; tasks on other paths
+		 * run in parallel.
+		 */
+		static void execute(String path, Runnable task) {
+			String key = pathKey(path);
+			TimedTask timed = new TimedTask(task);
+			pendingTasks.incrementAndGet();
+			synchronized (pathQueues) {
+				PathQueue queue = pathQueues.get(key);
+				if (queue == null) {
+					queue = new PathQueue(key);
+					pathQueues.put(key, queue);
+				}
+				if (!queue.enqueue(timed)) {
+					return;
+				}
+			}
+			fileExecutor().execute(timed);
+		}
+
+		/**
+		 * The key tasks on a path are serialized by: content URIs as they are, files by their absolute path.
+		 */
+		static String pathKey(String path) {
+			return path.startsWith("content://") ? path : new java.io.File(path).getAbsolutePath();
+		}
+
+		/**
+		 * Runs a task that touches no particular path on the file executor.
+		 */
+		static void execute(Runnable task) {
+			pendingTasks.incrementAndGet();
+			fileExecutor().execute(new TimedTask(task));
+		}
+
+		static class TimedTask implements Runnable {
+			private final Runnable runnable;
+			private final long enqueuedAt = SystemClock.elapsedRealtime();
+			PathQueue queue;
+
+			TimedTask(Runnable runnable) {
+				this.runnable = runnable;
+			}
+
+			@Override
+			public void run() {
+				pendingTasks.decrementAndGet();
+				waitMetrics.record(SystemClock.elapsedRealtime() - enqueuedAt);
+				try {
+					runnable.run();
+				} finally {
+					latencyMetrics.record(SystemClock.elapsedRealtime() - enqueuedAt);
+					if (queue != null) {
+						queue.scheduleNext();
+					}
+				}
+			}
+		}
+
+		/**
+		 * The tasks of one path, run one at a time like the SerialExecutor in image.AsyncTask. The queue drops out of
+		 * the map once it is empty, so idle paths cost nothing.
+		 */
+		static class PathQueue {
+			private final String key;
+			// guarded by pathQueues
+			private final ArrayDeque<TimedTask> tasks = new ArrayDeque<TimedTask>();
+			private boolean active;
+
+			PathQueue(String key) {
+				this.key = key;
+			}
+
+			/**
+			 * Returns true if the task should start right away.
+			 */
+			boolean enqueue(TimedTask task) {
+				task.queue = this;
+				if (active) {
+					tasks.offer(task);
+					return false;
+				}
+				active = true;
+				return true;
+			}
+
+			void scheduleNext() {
+				TimedTask next;
+				synchronized (pathQueues) {
+					next = tasks.poll();
+					if (next == null) {
+						active = false;
+						pathQueues.remove(key);
+						return;
+					}
+				}
+				fileExecutor().execute(next);
+			}
+		}
+
+		static void updateValue(Context context, Uri uri) {
+			try {
+				ContentValues values = new ContentValues();
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+					context.getContentResolver().update(uri, values, null);
+				} else {
+					context.getContentResolver().update(uri, values, null, null);
+				}
+			} catch (Exception exception){
+				Log.e(TAG, "Failed to updateValue: " + exception.getMessage());
+			}
+			
+		}
+
+		public static void append(final String path, final byte[] content, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			execute(path, new Runnable() {
+				@Override
+				public void run() {
+					final AppendTask task = new AppendTask(callback, context);
+					final boolean result = task.doInBackground(path, content);
+					deliver(mHandler, new Runnable() {
+						@Override
+						public void run() {
+							task.onPostExecute(result);
+						}
+					});
+				}
+			});
+		}
+
+		public static void appendBuffer(final String path, final ByteBuffer content, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			execute(path, new Runnable() {
+				@Override
+				public void run() {
+					final AppendBufferTask task = new AppendBufferTask(callback, context);
+					final boolean result = task.doInBackground(path, content);
+					deliver(mHandler, new Runnable() {
+						@Override
+						public void run() {
+							task.onPostExecute(result);
+						}
+					});
+				}
+			});
+		}
+
+		public static void appendText(final String path, final String content, final String encoding, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			execute(path, new Runnable() {
+				@Override
+				public void run() {
+					final AppendTextTask task = new AppendTextTask(callback, context);
+					final boolean result = task.doInBackground(path, content, encoding);
+					deliver(mHandler, new Runnable() {
+						@Override
+						public void run() {
+							task.onPostExecute(result);
+						}
+					});
+				}
+			});
+		}
+
+		public static final int SYNC_NONE = 0;
+		public static final int SYNC_ON_FLUSH = 1;
+		public static final int SYNC_ON_CLOSE = 2;
+
+		private static final HashMap<String, AppendQueue> appendWriters = new HashMap<String, AppendQueue>();
+
+		/**
+		 * Returns an append writer for path. Everyone appending to a path shares one queue and one open file, so appends
+		 * reach the file in the order they were made; the settings of the first opener apply. Every open must be matched
+		 * by one {@link AppendWriter#close}. The writer keeps a file descriptor open, so path must be a file path;
+		 * content:// uris are rejected.
+		 *
+		 * @param flushBytes pending bytes that trigger a write right away
+		 * @param flushDelay ms after the first pending append at which it is written anyway, 0 to write right away
+		 * @param syncPolicy one of SYNC_NONE, SYNC_ON_FLUSH (fsync after every write) or SYNC_ON_CLOSE
+		 */
+		public static AppendWriter openAppendWriter(final String path, final int flushBytes, final long flushDelay, final int syncPolicy) throws IOException {
+			if (path.startsWith("content://")) {
+				throw new IOException("Append writers need a file path, " + path + " is a content uri");
+			}
+			String key = pathKey(path);
+			synchronized (appendWriters) {
+				AppendQueue queue = appendWriters.get(key);
+				if (queue == null) {
+					queue = new AppendQueue(key, flushBytes, flushDelay, syncPolicy);
+					appendWriters.put(key, queue);
+				}
+				// a queue still finishing its last close is taken over, its final write runs ahead of the new appends
+				queue.references++;
+				return new AppendWriter(queue);
+			}
+		}
+
+		/**
+		 * One opener's view of a shared append queue. Appending after close throws; closing twice does nothing more.
+		 */
+		public static class AppendWriter {
+			private final AppendQueue queue;
+			private final AtomicBoolean closed = new AtomicBoolean();
+
+			AppendWriter(AppendQueue queue) {
+				this.queue = queue;
+			}
+
+			/**
+			 * The array is written as is, so it must not be changed afterwards.
+			 */
+			public void append(byte[] content) {
+				checkOpen();
+				queue.enqueue(ByteBuffer.wrap(content));
+			}
+
+			public void appendBuffer(ByteBuffer content) {
+				checkOpen();
+				queue.enqueue(content.duplicate());
+			}
+
+			public void appendText(String content, String encoding) {
+				checkOpen();
+				queue.enqueue(ByteBuffer.wrap(content.getBytes(Charset.forName(encoding != null ? encoding : "UTF-8"))));
+			}
+
+			/**
+			 * Writes everything appended so far, then completes; fails if a write failed since the last flush.
+			 * The callback may be null.
+			 */
+			public void flush(final CompleteCallback callback, final Object context) {
+				queue.flush(callback, context);
+			}
+
+			/**
+			 * Releases this opener's reference. The last close writes what is pending, syncs unless the policy is
+			 * SYNC_NONE and closes the file; the callback, which may be null, runs when that is done. Closing again
+			 * only completes the callback once what was appended before is written.
+			 */
+			public void close(final CompleteCallback callback, final Object context) {
+				if (closed.compareAndSet(false, true)) {
+					queue.release(callback, context);
+				} else {
+					queue.flush(callback, context);
+				}
+			}
+
+			public long getAppendCount() {
+				return queue.getAppendCount();
+			}
+
+			/**
+			 * The number of write calls made on the file, every one of them a single writev.
+			 */
+			public long getWriteCount() {
+				return queue.writeCount;
+			}
+
+			public long getSyncCount() {
+				return queue.syncCount;
+			}
+
+			private void checkOpen() {
+				if (closed.get()) {
+					throw new IllegalStateException("AppendWriter for " + queue.path + " is closed");
+				}
+			}
+		}
+
+		/**
+		 * Keeps a file open for appending and writes everything appended since the last write with one gathering
+		 * write, instead of opening, writing and closing the file for each append like {@link #append}. At most one
+		 * write is in flight per queue; appends made meanwhile are batched into the next one. The queue stays in
+		 * appendWriters until its last close has been written, so a new opener always lines up behind it.
+		 */
+		static class AppendQueue implements Runnable {
+			final String path;
+			private final int flushBytes;
+			private final long flushDelay;
+			private final int syncPolicy;
+			private final Runnable timerTask = new Runnable() {
+				@Override
+				public void run() {
+					onTimer();
+				}
+			};
+			// guarded by appendWriters
+			private int references;
+
+			// guarded by this
+			private ArrayList<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+			private ArrayList<Runnable> waiters = new ArrayList<Runnable>();
+			private long pendingBytes;
+			private boolean running;
+			private boolean closing;
+			private ScheduledFuture<?> timer;
+			private long appendCount;
+
+			// only touched by the thread running the queue
+			private FileChannel channel;
+			private String failure;
+			volatile long writeCount;
+			volatile long syncCount;
+
+			AppendQueue(String path, int flushBytes, long flushDelay, int syncPolicy) {
+				this.path = path;
+				this.flushBytes = flushBytes;
+				this.flushDelay = flushDelay;
+				this.syncPolicy = syncPolicy;
+			}
+
+			void flush(final CompleteCallback callback, final Object context) {
+				boolean start;
+				synchronized (this) {
+					waiters.add(completion(callback, context));
+					start = startLocked();
+				}
+				if (start) {
+					execute(path, this);
+				}
+			}
+
+			void release(final CompleteCallback callback, final Object context) {
+				boolean start;
+				synchronized (appendWriters) {
+					if (--references > 0) {
+						flush(callback, context);
+						return;
+					}
+					synchronized (this) {
+						closing = true;
+						waiters.add(completion(callback, context));
+						start = startLocked();
+					}
+				}
+				if (start) {
+					execute(path, this);
+				}
+			}
+
+			synchronized long getAppendCount() {
+				return appendCount;
+			}
+
+			void enqueue(ByteBuffer buffer) {
+				boolean start = false;
+				synchronized (this) {
+					pending.add(buffer);
+					pendingBytes += buffer.remaining();
+					appendCount++;
+					if (pendingBytes >= flushBytes || flushDelay <= 0) {
+						start = startLocked();
+					} else if (!running && timer == null) {
+						timer = flushScheduler().schedule(timerTask, flushDelay, TimeUnit.MILLISECONDS);
+					}
+				}
+				if (start) {
+					execute(path, this);
+				}
+			}
+
+			private boolean startLocked() {
+				if (timer != null) {
+					timer.cancel(false);
+					timer = null;
+				}
+				if (running) {
+					// the running writer picks up whatever is pending before it stops
+					return false;
+				}
+				running = true;
+				return true;
+			}
+
+			private void onTimer() {
+				boolean start = false;
+				synchronized (this) {
+					timer = null;
+					if (!pending.isEmpty()) {
+						start = startLocked();
+					}
+				}
+				if (start) {
+					execute(path, this);
+				}
+			}
+
+			private Runnable completion(final CompleteCallback callback, final Object context) {
+				final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+				return new Runnable() {
+					@Override
+					public void run() {
+						final String error = failure;
+						failure = null;
+						if (callback != null) {
+							deliver(mHandler, new Runnable() {
+								@Override
+								public void run() {
+									if (error != null) {
+										callback.onError(error, context);
+									} else {
+										callback.onComplete(null, context);
+									}
+								}
+							});
+						}
+					}
+				};
+			}
+
+			@Override
+			public void run() {
+				boolean stopped = false;
+				try {
+					while (true) {
+						ArrayList<ByteBuffer> batch;
+						ArrayList<Runnable> done;
+						boolean close;
+						synchronized (this) {
+							if (pending.isEmpty() && waiters.isEmpty()) {
+								running = false;
+								stopped = true;
+								return;
+							}
+							batch = pending;
+							done = waiters;
+							close = closing;
+							closing = false;
+							pending = new ArrayList<ByteBuffer>();
+							waiters = new ArrayList<Runnable>();
+							pendingBytes = 0;
+						}
+
+						try {
+							if (!batch.isEmpty()) {
+								write(batch);
+							}
+						} catch (IOException e) {
+							failure = e.getMessage();
+							Log.e(TAG, "Failed to append file, IOException: " + e.getMessage());
+						}
+						if (close) {
+							if (channel != null) {
+								try {
+									if (syncPolicy != SYNC_NONE) {
+										channel.force(false);
+										syncCount++;
+									}
+									channel.close();
+								} catch (IOException e) {
+									failure = e.getMessage();
+									Log.e(TAG, "Failed to close file, IOException: " + e.getMessage());
+								}
+								channel = null;
+							}
+							synchronized (appendWriters) {
+								// unless someone opened the path again meanwhile, in which case the file reopens on the next write
+								if (references == 0 && appendWriters.get(path) == this) {
+									appendWriters.remove(path);
+								}
+							}
+						}
+						for (Runnable waiter : done) {
+							waiter.run();
+						}
+					}
+				} finally {
+					if (!stopped) {
+						// a RuntimeException must not leave the queue marked as running forever
+						synchronized (this) {
+							running = false;
+						}
+					}
+				}
+			}
+
+			private void write(ArrayList<ByteBuffer> batch) throws IOException {
+				if (channel == null) {
+					channel = new FileOutputStream(path, true).getChannel();
+				}
+				ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+				// a single writev takes at most IOV_MAX buffers, so large batches need a few calls
+				int offset = 0;
+				while (offset < buffers.length) {
+					channel.write(buffers, offset, buffers.length - offset);
+					writeCount++;
+					while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+						offset++;
+					}
+				}
+				if (syncPolicy == SYNC_ON_FLUSH) {
+					channel.force(false);
+					syncCount++;
+				}
+			}
+		}
+
+		/**
+		 * Controls an asynchronous copy. A cancelled copy stops at the next chunk and fails with an error; a partially
+		 * written destination file is deleted.
+		 */
+		public static class TaskHandle {
+			private volatile boolean cancelled;
+
+			public void cancel() {
+				cancelled = true;
+			}
+
+			public boolean isCancelled() {
+				return cancelled;
+			}
+		}
+
+		// bytes moved per transferTo call, so that progress and cancellation are checked between calls
+		private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+		static final long PROGRESS_INTERVAL = 16;
+
+		/**
+		 * Opens a channel on a path or content URI. Content URIs are opened through a ParcelFileDescriptor when the
+		 * provider supports it, so that the copy can run in the kernel like for plain files; closing the channel
+		 * closes the descriptor.
+		 */
+		private static ReadableByteChannel openSourceChannel(final String src, final Context context) throws IOException {
+			return toChannel(openSourceStream(src, context));
+		}
+
+		/**
+		 * Returns a FileInputStream for paths and for content URIs whose provider hands out a descriptor, and the
+		 * provider's stream otherwise.
+		 */
+		static InputStream openSourceStream(final String src, final Context context) throws IOException {
+			if (!src.startsWith("content://")) {
+				return new FileInputStream(new java.io.File(src));
+			}
+			Uri uri = Uri.parse(src);
+			ParcelFileDescriptor descriptor = null;
+			try {
+				descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+			} catch (FileNotFoundException | UnsupportedOperationException | SecurityException ignored) {
+				// some providers only serve streams
+			}
+			if (descriptor != null) {
+				return new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+			}
+			InputStream is = context.getContentResolver().openInputStream(uri);
+			if (is == null) {
+				throw new FileNotFoundException("Failed to open " + src);
+			}
+			return is;
+		}
+
+		private static WritableByteChannel openDestinationChannel(final String dest, final Context context) throws IOException {
+			if (!dest.startsWith("content://")) {
+				return new FileOutputStream(new java.io.File(dest)).getChannel();
+			}
+			Uri uri = Uri.parse(dest);
+			ParcelFileDescriptor descriptor = null;
+			try {
+				descriptor = context.getContentResolver().openFileDescriptor(uri, "wt");
+			} catch (FileNotFoundException | UnsupportedOperationException | SecurityException |
+					 IllegalArgumentException ignored) {
+				// some providers only serve streams, or do not support truncation
+			}
+			if (descriptor != null) {
+				return new ParcelFileDescriptor.AutoCloseOutputStream(descriptor).getChannel();
+			}
+			OutputStream os = context.getContentResolver().openOutputStream(uri);
+			if (os == null) {
+				throw new FileNotFoundException("Failed to open " + dest);
+			}
+			return Channels.newChannel(os);
+		}
+
+		private static ReadableByteChannel toChannel(final InputStream is) {
+			return is instanceof FileInputStream ? ((FileInputStream) is).getChannel() : Channels.newChannel(is);
+		}
+
+		private static WritableByteChannel toChannel(final OutputStream os) {
+			return os instanceof FileOutputStream ? ((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+		}
+
+		public static boolean copySync(final String src, final String dest, final Context context) throws Exception {
+			try (ReadableByteChannel isc = openSourceChannel(src, context); WritableByteChannel osc = openDestinationChannel(dest, context)) {
+				fastChannelCopy(isc, osc, null, null);
+			}
+			if (dest.startsWith("content://")) {
+				updateValue(context, Uri.parse(dest));
+			}
+			return true;
+		}
+
+		public static boolean copySync(final InputStream src, final OutputStream dest, final Object context) throws Exception {
+			fastChannelCopy(toChannel(src), toChannel(dest), null, null);
+			return true;
+		}
+
+		public static void copy(final String src, final String dest, final CompleteCallback callback, final Context context) {
+			copy(src, dest, null, callback, context);
+		}
+
+		/**
+		 * Copies src to dest, which are paths or content URIs, completing with true or failing with an error.
+		 * progressCallback may be null.
+		 */
+		public static TaskHandle copy(final String src, final String dest, final ProgressCallback progressCallback, final CompleteCallback callback, final Context context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final TaskHandle handle = new TaskHandle();
+			final ProgressReporter progress = ProgressReporter.create(progressCallback, context, mHandler, PROGRESS_INTERVAL);
+			execute(dest, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						try (ReadableByteChannel isc = openSourceChannel(src, context); WritableByteChannel osc = openDestinationChannel(dest, context)) {
+							fastChannelCopy(isc, osc, handle, progress);
+						}
+						if (dest.startsWith("content://")) {
+							updateValue(context, Uri.parse(dest));
+						}
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onComplete(true, context);
+							}
+						});
+					} catch (final Exception e) {
+						if (handle.isCancelled() && !dest.startsWith("content://")) {
+							new java.io.File(dest).delete();
+						}
+						Log.e(TAG, "Failed to copy file, " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onError(e.getMessage(), context);
+							}
+						});
+					}
+				}
+			});
+			return handle;
+		}
+
+		/**
+		 * Copies until the end of src and returns the number of bytes copied. A FileChannel source is moved with
+		 * transferTo, which runs in the kernel (sendfile) when dest is a file too; what is left after that, or a
+		 * source of unknown size such as a pipe, goes through a pooled direct buffer.
+		 */
+		static long fastChannelCopy(final ReadableByteChannel src, final WritableByteChannel dest,
+									final TaskHandle handle, final ProgressReporter progress) throws IOException {
+			long written = 0;
+			if (src instanceof FileChannel) {
+				FileChannel in = (FileChannel) src;
+				long position = in.position();
+				long size = in.size();
+				if (progress != null && size > 0) {
+					progress.setTotal(size - position);
+				}
+				while (position < size) {
+					checkCancelled(handle);
+					long n = in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), dest);
+					if (n <= 0) {
+						break;
+					}
+					position += n;
+					written += n;
+					if (progress != null) {
+						progress.update(written);
+					}
+				}
+				in.position(position);
+			}
+
+			final ByteBuffer buffer = DirectBufferPool.acquire();
+			try {
+				while (true) {
+					checkCancelled(handle);
+					int n = src.read(buffer);
+					if (n < 0) {
+						break;
+					}
+					buffer.flip();
+					// write to the channel, may block
+					while (buffer.hasRemaining()) {
+						dest.write(buffer);
+					}
+					buffer.clear();
+					written += n;
+					if (progress != null) {
+						progress.update(written);
+					}
+				}
+			} finally {
+				DirectBufferPool.release(buffer);
+			}
+			if (progress != null) {
+				progress.flush();
+			}
+			return written;
+		}
+
+		private static void checkCancelled(final TaskHandle handle) throws InterruptedIOException {
+			if (handle != null && handle.isCancelled()) {
+				throw new InterruptedIOException("Copy cancelled");
+			}
+		}
+
+		public static void copy(final InputStream src, final OutputStream dest, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			execute((Runnable) () -> {
+
+				Exception error = null;
+				try (InputStream is = src; OutputStream os = dest){
+					fastChannelCopy(toChannel(is), toChannel(os), null, null);
+				} catch (Exception e) {
+					error = e;
+
+				}finally {
+					if (error != null){
+						Exception finalError = error;
+						deliver(mHandler, () -> callback.onError(finalError.getMessage(), context));
+					}else {
+						deliver(mHandler, () -> callback.onComplete(true, context));
+					}
+				}
+			});
+		}
+
+		public static final String HASH_CRC32 = "CRC32";
+
+		/**
+		 * Completes with the lowercase hex digest of a file or content URI. algorithm is a MessageDigest name such as
+		 * "SHA-1", "SHA-256" or "SHA-512", or HASH_CRC32. The file is streamed through a fixed 64 KB buffer, so memory
+		 * use does not depend on its size.
+		 */
+		public static void hash(final String path, final String algorithm, final CompleteCallback callback, final Context context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			execute(path, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final String result = hashSync(path, algorithm, context);
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onComplete(result, context);
+							}
+						});
+					} catch (final Exception e) {
+						Log.e(TAG, "Failed to hash file, " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onError(e.getMessage(), context);
+							}
+						});
+					}
+				}
+			});
+		}
+
+		/**
+		 * Hashes every path in parallel on the file executor and completes with a String[] of digests in the same
+		 * order, with null for the files that could not be read.
+		 */
+		public static void hashAll(final String[] paths, final String algorithm, final CompleteCallback callback, final Context context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final String[] results = new String[paths.length];
+			final AtomicInteger remaining = new AtomicInteger(paths.length);
+			final Runnable complete = new Runnable() {
+				@Override
+				public void run() {
+					deliver(mHandler, new Runnable() {
+						@Override
+						public void run() {
+							callback.onComplete(results, context);
+						}
+					});
+				}
+			};
+			if (paths.length == 0) {
+				complete.run();
+				return;
+			}
+			for (int i = 0; i < paths.length; i++) {
+				final int index = i;
+				execute(paths[i], new Runnable() {
+					@Override
+					public void run() {
+						try {
+							results[index] = hashSync(paths[index], algorithm, context);
+						} catch (Exception e) {
+							Log.e(TAG, "Failed to hash file, " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						} finally {
+							// even an Error counts the path off, or the callback would never run
+							if (remaining.decrementAndGet() == 0) {
+								complete.run();
+							}
+						}
+					}
+				});
+			}
+		}
+
+		public static String hashSync(final String path, final String algorithm, final Context context) throws Exception {
+			MessageDigest digest = null;
+			CRC32 crc = null;
+			if (HASH_CRC32.equalsIgnoreCase(algorithm)) {
+				crc = new CRC32();
+			} else {
+				digest = MessageDigest.getInstance(algorithm);
+			}
+
+			// a plain array: CRC32.update(ByteBuffer) needs API 26, and array reads from a FileInputStream copy nothing extra
+			byte[] buffer = ByteArrayPool.acquire();
+			try (InputStream is = openSourceStream(path, context)) {
+				int n;
+				while ((n = is.read(buffer)) != -1) {
+					if (crc != null) {
+						crc.update(buffer, 0, n);
+					} else {
+						digest.update(buffer, 0, n);
+					}
+				}
+			} finally {
+				ByteArrayPool.release(buffer);
+			}
+
+			if (crc != null) {
+				return String.format(Locale.US, "%08x", crc.getValue());
+			}
+			return toHex(digest.digest());
+		}
+
+		private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+		static String toHex(byte[] bytes) {
+			char[] chars = new char[bytes.length * 2];
+			for (int i = 0; i < bytes.length; i++) {
+				chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+				chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+			}
+			return new String(chars);
+		}
+
+		private static ForkJoinPool treePool;
+
+		/**
+		 * Directory operations are queued like any other File operation on the path they write (or read, when they
+		 * write nothing), then fan out over a fork/join pool of their own, bounded so that a large tree does not flood
+		 * the disk with requests.
+		 */
+		static synchronized ForkJoinPool treePool() {
+			if (treePool == null) {
+				treePool = new ForkJoinPool(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+			}
+
+			return treePool;
+		}
+
+		/**
+		 * Copies the tree under src into dest, creating directories as needed, and completes with the number of files
+		 * copied. Files go through the same channel copy as {@link #copy}; progress is in bytes, with an unknown total.
+		 * Symbolic links are copied as links, not followed. Anything else that is not a regular file (a pipe, a socket,
+		 * a device) cannot be copied; the rest of the tree still is, and then the copy fails naming how many were left
+		 * out. A cancelled or failed copy leaves what was copied so far.
+		 */
+		public static TaskHandle copyDirectory(final String src, final String dest, final ProgressCallback progressCallback, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final TaskHandle handle = new TaskHandle();
+			final TreeOperation operation = new CopyOperation(handle, ProgressReporter.create(progressCallback, context, mHandler, PROGRESS_INTERVAL));
+			runTree(operation, new java.io.File(src), new java.io.File(dest), mHandler, callback, context);
+			return handle;
+		}
+
+		/**
+		 * Deletes the tree under path, or with contentsOnly only what is inside it, and completes with the number of
+		 * entries deleted. Progress counts deleted entries. Symbolic links are deleted, not followed. An entry that
+		 * cannot be deleted does not stop the others; the operation then fails with the number left and the first one.
+		 */
+		public static TaskHandle deleteDirectory(final String path, final boolean contentsOnly, final ProgressCallback progressCallback, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final TaskHandle handle = new TaskHandle();
+			final TreeOperation operation = new DeleteOperation(handle, ProgressReporter.create(progressCallback, context, mHandler, PROGRESS_INTERVAL), contentsOnly);
+			runTree(operation, new java.io.File(path), null, mHandler, callback, context);
+			return handle;
+		}
+
+		/**
+		 * Completes with a {@link DirectorySize} for the tree under path.
+		 */
+		public static TaskHandle getDirectorySize(final String path, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final TaskHandle handle = new TaskHandle();
+			runTree(new SizeOperation(handle), new java.io.File(path), null, mHandler, callback, context);
+			return handle;
+		}
+
+		/**
+		 * Completes with an array of {@link Entry}, sorted by path, for everything under path (recursive) or directly
+		 * in it. The metadata comes from the single lstat the walk makes anyway.
+		 */
+		public static TaskHandle listDirectory(final String path, final boolean recursive, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final TaskHandle handle = new TaskHandle();
+			runTree(new ListOperation(handle, recursive), new java.io.File(path), null, mHandler, callback, context);
+			return handle;
+		}
+
+		public static class DirectorySize {
+			private final long fileCount;
+			private final long directoryCount;
+			private final long size;
+			private final long sizeOnDisk;
+
+			DirectorySize(long fileCount, long directoryCount, long size, long sizeOnDisk) {
+				this.fileCount = fileCount;
+				this.directoryCount = directoryCount;
+				this.size = size;
+				this.sizeOnDisk = sizeOnDisk;
+			}
+
+			public long getFileCount() {
+				return fileCount;
+			}
+
+			public long getDirectoryCount() {
+				return directoryCount;
+			}
+
+			/**
+			 * The sum of the file lengths.
+			 */
+			public long getSize() {
+				return size;
+			}
+
+			/**
+			 * The space taken by the allocated blocks of every file and directory, which is what clearing the tree frees.
+			 */
+			public long getSizeOnDisk() {
+				return sizeOnDisk;
+			}
+		}
+
+		public static class Entry {
+			private final String path;
+			private final boolean directory;
+			private final long size;
+			private final long lastModified;
+
+			Entry(String path, boolean directory, long size, long lastModified) {
+				this.path = path;
+				this.directory = directory;
+				this.size = size;
+				this.lastModified = lastModified;
+			}
+
+			public String getPath() {
+				return path;
+			}
+
+			public String getName() {
+				return path.substring(path.lastIndexOf('/') + 1);
+			}
+
+			public boolean isDirectory() {
+				return directory;
+			}
+
+			public long getSize() {
+				return size;
+			}
+
+			public long getLastModified() {
+				return lastModified;
+			}
+		}
+
+		private static void runTree(final TreeOperation operation, final java.io.File root, final java.io.File target, final android.os.Handler mHandler, final CompleteCallback callback, final Object context) {
+			execute(target != null ? target.getPath() : root.getPath(), new Runnable() {
+				@Override
+				public void run() {
+					treePool().invoke(new DirectoryTask(operation, root, target, true));
+					operation.finish();
+					if (operation.progress != null) {
+						operation.progress.flush();
+					}
+					final String error = operation.handle.isCancelled() ? "Cancelled" : operation.error;
+					final Object result = error == null ? operation.getResult() : null;
+					if (error != null) {
+						Log.e(TAG, "Failed to process " + root.getPath() + ": " + error);
+					}
+					deliver(mHandler, new Runnable() {
+						@Override
+						public void run() {
+							if (error != null) {
+								callback.onError(error, context);
+							} else {
+								callback.onComplete(result, context);
+							}
+						}
+					});
+				}
+			});
+		}
+
+		static StructStat lstat(java.io.File file) {
+			try {
+				return Os.lstat(file.getPath());
+			} catch (ErrnoException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * What a directory walk does at each node. The callbacks run on several pool threads at once; a directory is
+		 * left only after everything under it is done.
+		 */
+		abstract static class TreeOperation {
+			final TaskHandle handle;
+			final ProgressReporter progress;
+			volatile String error;
+			private long transferred;
+
+			TreeOperation(TaskHandle handle, ProgressReporter progress) {
+				this.handle = handle;
+				this.progress = progress;
+			}
+
+			boolean isStopped() {
+				return error != null || handle.isCancelled();
+			}
+
+			void fail(String message) {
+				if (error == null) {
+					error = message;
+				}
+			}
+
+			void advance(long amount) {
+				if (progress != null) {
+					synchronized (this) {
+						transferred += amount;
+						progress.update(transferred);
+					}
+				}
+			}
+
+			boolean enterDirectory(java.io.File directory, java.io.File target, StructStat stat, boolean root) {
+				return true;
+			}
+
+			abstract void visitFile(java.io.File file, java.io.File target, StructStat stat);
+
+			void leaveDirectory(java.io.File directory, boolean root) {
+			}
+
+			/**
+			 * Called once the walk is over, to fail with what went wrong without stopping it.
+			 */
+			void finish() {
+			}
+
+			abstract Object getResult();
+		}
+
+		static final class CopyOperation extends TreeOperation {
+			private final AtomicLong files = new AtomicLong();
+			private final AtomicLong skipped = new AtomicLong();
+			private volatile String firstSkipped;
+
+			CopyOperation(TaskHandle handle, ProgressReporter progress) {
+				super(handle, progress);
+			}
+
+			@Override
+			boolean enterDirectory(java.io.File directory, java.io.File target, StructStat stat, boolean root) {
+				if (root && isInside(target, directory)) {
+					fail("Cannot copy " + directory.getPath() + " into itself");
+					return false;
+				}
+				if (!target.isDirectory() && !target.mkdirs()) {
+					fail("Failed to create " + target.getPath());
+					return false;
+				}
+				return true;
+			}
+
+			@Override
+			void visitFile(java.io.File file, java.io.File target, StructStat stat) {
+				if (OsConstants.S_ISLNK(stat.st_mode)) {
+					copyLink(file, target);
+					return;
+				}
+				if (!OsConstants.S_ISREG(stat.st_mode)) {
+					if (skipped.getAndIncrement() == 0) {
+						firstSkipped = file.getPath();
+					}
+					return;
+				}
+				try (FileChannel in = new FileInputStream(file).getChannel(); FileChannel out = new FileOutputStream(target).getChannel()) {
+					advance(fastChannelCopy(in, out, handle, null));
+					files.incrementAndGet();
+				} catch (IOException e) {
+					if (!handle.isCancelled()) {
+						fail("Failed to copy " + file.getPath() + ", " + e.getMessage());
+					}
+				}
+			}
+
+			private void copyLink(java.io.File file, java.io.File target) {
+				try {
+					// like the files, an existing entry is replaced
+					target.delete();
+					Os.symlink(Os.readlink(file.getPath()), target.getPath());
+					files.incrementAndGet();
+				} catch (ErrnoException e) {
+					fail("Failed to copy " + file.getPath() + ", " + e.getMessage());
+				}
+			}
+
+			@Override
+			void finish() {
+				if (skipped.get() > 0) {
+					fail("Cannot copy " + skipped.get() + " special files, the first is " + firstSkipped);
+				}
+			}
+
+			private static boolean isInside(java.io.File file, java.io.File directory) {
+				try {
+					String path = file.getCanonicalPath();
+					String parent = directory.getCanonicalPath();
+					return path.equals(parent) || path.startsWith(parent + "/");
+				} catch (IOException e) {
+					return false;
+				}
+			}
+
+			@Override
+			Object getResult() {
+				return files.get();
+			}
+		}
+
+		static final class DeleteOperation extends TreeOperation {
+			private final boolean contentsOnly;
+			private final AtomicLong deleted = new AtomicLong();
+			private final AtomicLong failed = new AtomicLong();
+			private volatile String firstFailed;
+
+			DeleteOperation(TaskHandle handle, ProgressReporter progress, boolean contentsOnly) {
+				super(handle, progress);
+				this.contentsOnly = contentsOnly;
+			}
+
+			@Override
+			void visitFile(java.io.File file, java.io.File target, StructStat stat) {
+				delete(file);
+			}
+
+			@Override
+			void leaveDirectory(java.io.File directory, boolean root) {
+				if (!(root && contentsOnly) && !isStopped()) {
+					delete(directory);
+				}
+			}
+
+			private void delete(java.io.File file) {
+				if (file.delete()) {
+					deleted.incrementAndGet();
+					advance(1);
+				} else if (failed.getAndIncrement() == 0) {
+					firstFailed = file.getPath();
+				}
+			}
+
+			@Override
+			void finish() {
+				// a directory that kept one of its entries cannot be deleted either and is counted too
+				if (failed.get() > 0) {
+					fail("Failed to delete " + failed.get() + " entries, the first is " + firstFailed);
+				}
+			}
+
+			@Override
+			Object getResult() {
+				return deleted.get();
+			}
+		}
 
-				try {
-					RequestOptions options = params[0];
-					URL url = new URL(options.url);
-					HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		static final class SizeOperation extends TreeOperation {
+			private final AtomicLong files = new AtomicLong();
+			private final AtomicLong directories = new AtomicLong();
+			private final AtomicLong size = new AtomicLong();
+			private final AtomicLong blocks = new AtomicLong();
 
-					// set the request method
-					String requestMethod = options.method != null ? options.method.toUpperCase(Locale.ENGLISH) : GET_METHOD;
-					connection.setRequestMethod(requestMethod);
+			SizeOperation(TaskHandle handle) {
+				super(handle, null);
+			}
 
-					// add the headers
-					options.addHeaders(connection);
+			@Override
+			boolean enterDirectory(java.io.File directory, java.io.File target, StructStat stat, boolean root) {
+				if (!root) {
+					directories.incrementAndGet();
+					blocks.addAndGet(stat.st_blocks);
+				}
+				return true;
+			}
 
-					// apply timeout
-					if (options.timeout > 0) {
-						connection.setConnectTimeout(options.timeout);
-						connection.setReadTimeout(options.timeout);
-					}
+			@Override
+			void visitFile(java.io.File file, java.io.File target, StructStat stat) {
+				files.incrementAndGet();
+				size.addAndGet(stat.st_size);
+				blocks.addAndGet(stat.st_blocks);
+			}
 
-					// don't follow redirect (30x) responses; by default, HttpURLConnection follows them.
-					if (options.dontFollowRedirects) {
-						connection.setInstanceFollowRedirects(false);
-					}
+			@Override
+			Object getResult() {
+				// st_blocks counts 512-byte units whatever the block size of the filesystem
+				return new DirectorySize(files.get(), directories.get(), size.get(), blocks.get() * 512);
+			}
+		}
 
-					options.writeContent(connection, openedStreams);
+		static final class ListOperation extends TreeOperation {
+			private final boolean recursive;
+			private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
 
-					// close the opened streams (saves copy-paste implementation
-					// in each method that throws IOException)
-					this.closeOpenedStreams(openedStreams);
+			ListOperation(TaskHandle handle, boolean recursive) {
+				super(handle, null);
+				this.recursive = recursive;
+			}
 
-					connection.connect();
+			@Override
+			boolean enterDirectory(java.io.File directory, java.io.File target, StructStat stat, boolean root) {
+				if (root) {
+					return true;
+				}
+				entries.add(new Entry(directory.getPath(), true, 0, stat.st_mtime * 1000));
+				return recursive;
+			}
 
-					// build the result
-					result.getHeaders(connection);
-					result.url = options.url;
-					result.statusCode = connection.getResponseCode();
-					result.statusText = connection.getResponseMessage();
-					if (!requestMethod.equals(HEAD_METHOD)) {
-						result.readResponseStream(connection, openedStreams, options);
+			@Override
+			void visitFile(java.io.File file, java.io.File target, StructStat stat) {
+				entries.add(new Entry(file.getPath(), false, stat.st_size, stat.st_mtime * 1000));
+			}
+
+			@Override
+			Object getResult() {
+				Entry[] result = entries.toArray(new Entry[entries.size()]);
+				Arrays.sort(result, new Comparator<Entry>() {
+					@Override
+					public int compare(Entry a, Entry b) {
+						return a.path.compareTo(b.path);
 					}
+				});
+				return result;
+			}
+		}
 
-					// close the opened streams (saves copy-paste implementation
-					// in each method that throws IOException)
-					this.closeOpenedStreams(openedStreams);
+		// files handled by one fork/join task, so that a flat directory of thousands of files is spread over the pool
+		private static final int TREE_BATCH_SIZE = 32;
 
-					connection.disconnect();
+		static final class DirectoryTask extends RecursiveAction {
+			private final TreeOperation operation;
+			private final java.io.File directory;
+			private final java.io.File target;
+			private final boolean root;
 
-					return result;
-				} catch (Exception e) // TODO: Catch all exceptions?
-				{
-					result.error = e;
+			DirectoryTask(TreeOperation operation, java.io.File directory, java.io.File target, boolean root) {
+				this.operation = operation;
+				this.directory = directory;
+				this.target = target;
+				this.root = root;
+			}
 
-					return result;
-				} finally {
-					try {
-						this.closeOpenedStreams(openedStreams);
-					} catch (IOException e) {
-						Log.e(TAG, "Failed to close opened streams, IOException: " + e.getMessage());
+			@Override
+			protected void compute() {
+				if (operation.isStopped()) {
+					return;
+				}
+				StructStat stat = lstat(directory);
+				if (stat == null || !OsConstants.S_ISDIR(stat.st_mode)) {
+					operation.fail(directory.getPath() + " is not a directory");
+					return;
+				}
+				if (!operation.enterDirectory(directory, target, stat, root)) {
+					return;
+				}
+				java.io.File[] children = directory.listFiles();
+				if (children == null) {
+					operation.fail("Failed to list " + directory.getPath());
+					return;
+				}
+
+				ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				FileBatchTask batch = null;
+				for (java.io.File child : children) {
+					StructStat childStat = lstat(child);
+					if (childStat == null) {
+						// removed since the listing
+						continue;
+					}
+					java.io.File childTarget = target != null ? new java.io.File(target, child.getName()) : null;
+					if (OsConstants.S_ISDIR(childStat.st_mode)) {
+						tasks.add(new DirectoryTask(operation, child, childTarget, false));
+						continue;
+					}
+					if (batch == null || batch.count == TREE_BATCH_SIZE) {
+						batch = new FileBatchTask(operation);
+						tasks.add(batch);
 					}
+					batch.add(child, childTarget, childStat);
 				}
+				invokeAll(tasks);
+				operation.leaveDirectory(directory, root);
 			}
+		}
 
-			protected void onPostExecute(final RequestResult result) {
-				if (result != null) {
-					this.callback.onComplete(result, this.context);
-				} else {
-					this.callback.onError("HttpRequestTask returns no result.", this.context);
-				}
+		static final class FileBatchTask extends RecursiveAction {
+			private final TreeOperation operation;
+			private final java.io.File[] files = new java.io.File[TREE_BATCH_SIZE];
+			private final java.io.File[] targets = new java.io.File[TREE_BATCH_SIZE];
+			private final StructStat[] stats = new StructStat[TREE_BATCH_SIZE];
+			int count;
+
+			FileBatchTask(TreeOperation operation) {
+				this.operation = operation;
 			}
 
-			private void closeOpenedStreams(Stack<Closeable> streams) throws IOException {
-				while (streams.size() > 0) {
-					Closeable stream = streams.pop();
-					stream.close();
+			void add(java.io.File file, java.io.File target, StructStat stat) {
+				files[count] = file;
+				targets[count] = target;
+				stats[count] = stat;
+				count++;
+			}
+
+			@Override
+			protected void compute() {
+				for (int i = 0; i < count && !operation.isStopped(); i++) {
+					operation.visitFile(files[i], targets[i], stats[i]);
 				}
 			}
 		}
-	}
-
-	public static class File {
 
-		static void updateValue(Context context, Uri uri) {
-			try {
-				ContentValues values = new ContentValues();
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-					context.getContentResolver().update(uri, values, null);
-				} else {
-					context.getContentResolver().update(uri, values, null, null);
+		public static void readText(final String path, final String encoding, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			execute(path, new Runnable() {
+				@Override
+				public void run() {
+					final ReadTextTask task = new ReadTextTask(callback, context);
+					final String result = task.doInBackground(path, encoding);
+					deliver(mHandler, new Runnable() {
+						@Override
+						public void run() {
+							task.onPostExecute(result);
+						}
+					});
 				}
-			} catch (Exception exception){
-				Log.e(TAG, "Failed to updateValue: " + exception.getMessage());
-			}
-			
+			});
 		}
 
-		public static void append(final String path, final byte[] content, final CompleteCallback callback, final Object context) {
+		public static void read(final String path, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final AppendTask task = new AppendTask(callback, context);
-					final boolean result = task.doInBackground(path, content);
-					mHandler.post(new Runnable() {
+					final ReadTask task = new ReadTask(callback, context);
+					final byte[] result = task.doInBackground(path);
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -654,14 +5288,14 @@ public class Async {
 			});
 		}
 
-		public static void appendBuffer(final String path, final ByteBuffer content, final CompleteCallback callback, final Object context) {
+		public static void readBuffer(final String path, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final AppendBufferTask task = new AppendBufferTask(callback, context);
-					final boolean result = task.doInBackground(path, content);
-					mHandler.post(new Runnable() {
+					final ReadBufferTask task = new ReadBufferTask(callback, context);
+					final ByteBuffer result = task.doInBackground(path);
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -671,14 +5305,27 @@ public class Async {
 			});
 		}
 
-		public static void appendText(final String path, final String content, final String encoding, final CompleteCallback callback, final Object context) {
+		/**
+		 * Maps the whole file into memory instead of copying it, see {@link #mapBuffer(String, long, long, CompleteCallback, Object)}.
+		 */
+		public static void mapBuffer(final String path, final CompleteCallback callback, final Object context) {
+			mapBuffer(path, 0, -1, callback, context);
+		}
+
+		/**
+		 * Completes with a read-only MappedByteBuffer over length bytes of the file starting at offset (to the end of the
+		 * file when length is negative). Pages are loaded by the kernel on first access and shared with the page cache,
+		 * so large assets are not copied into fresh native memory. The mapping stays valid after the file is closed;
+		 * the buffer must not be written to.
+		 */
+		public static void mapBuffer(final String path, final long offset, final long length, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final AppendTextTask task = new AppendTextTask(callback, context);
-					final boolean result = task.doInBackground(path, content, encoding);
-					mHandler.post(new Runnable() {
+					final MapBufferTask task = new MapBufferTask(callback, context);
+					final ByteBuffer result = task.doInBackground(path, offset, length);
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -688,138 +5335,293 @@ public class Async {
 			});
 		}
 
-		public static boolean copySync(final String src, final String dest, final Context context) throws Exception {
-			InputStream is;
-			OutputStream os;
-			boolean requiresUpdate = false;
-			if(src.startsWith("content://")){
-				is = context.getContentResolver().openInputStream(Uri.parse(src));
-			}else is = new FileInputStream(new java.io.File(src));
+		public interface StreamCallback {
+			/**
+			 * Receives a direct ByteBuffer (readChunks) or a String[] of lines without their terminators (readLines).
+			 * Each chunk uses up one credit.
+			 */
+			void onChunk(Object chunk, Object context);
 
-			if(dest.startsWith("content://")){
-				os = context.getContentResolver().openOutputStream(Uri.parse(dest));
-				requiresUpdate = true;
-			}else os = new FileOutputStream(new java.io.File(dest));
+			void onEnd(Object context);
 
-			boolean ret = copySync(is, os, context);
+			void onError(String error, Object context);
+		}
 
-			if(ret && requiresUpdate){
-				updateValue(context, Uri.parse(dest));
-			}
+		public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
 
-			return ret;
+		/**
+		 * Streams the file as direct ByteBuffers of up to chunkSize bytes. At most credits chunks are read ahead of
+		 * the consumer; call {@link StreamHandle#request(int)} to allow more. Memory use stays at about
+		 * credits * chunkSize whatever the size of the file.
+		 */
+		public static StreamHandle readChunks(final String path, final int chunkSize, final int credits, final StreamCallback callback, final Object context) {
+			StreamHandle handle = new StreamHandle(path, null, chunkSize, callback, context);
+			handle.request(credits);
+			return handle;
+		}
 
+		/**
+		 * Streams the file as batches of text lines, decoded incrementally so that characters split between two reads
+		 * are kept intact. Lines end at \n, \r\n or \r; every batch holds the lines completed by one read of up to
+		 * chunkSize bytes, and uses up one credit.
+		 */
+		public static StreamHandle readLines(final String path, final String encoding, final int chunkSize, final int credits, final StreamCallback callback, final Object context) {
+			StreamHandle handle = new StreamHandle(path, encoding != null ? encoding : "UTF-8", chunkSize, callback, context);
+			handle.request(credits);
+			return handle;
 		}
 
-		public static boolean copySync(final InputStream src, final OutputStream dest, final Object context) throws Exception {
-			ReadableByteChannel isc = java.nio.channels.Channels.newChannel(src);
-			WritableByteChannel osc = java.nio.channels.Channels.newChannel(dest);
+		/**
+		 * Controls a streaming read. The reader only occupies an executor thread while it has credits, so a slow
+		 * consumer holds no thread and no more than its outstanding chunks in memory.
+		 */
+		public static class StreamHandle implements Runnable {
+			private final String path;
+			private final String encoding;
+			private final int chunkSize;
+			private final StreamCallback callback;
+			private final Object context;
+			private final android.os.Handler handler;
+			private final AtomicInteger credits = new AtomicInteger();
+			private final AtomicBoolean scheduled = new AtomicBoolean();
+			private volatile boolean cancelled;
+			private volatile boolean finished;
+
+			// only touched by the thread running the reader; bytes only stages readLines input for the decoder
+			private FileChannel channel;
+			private ByteBuffer bytes;
+			private CharsetDecoder decoder;
+			private CharBuffer chars;
+			private final StringBuilder partialLine = new StringBuilder();
+			private boolean skipLineFeed;
+			private boolean endOfInput;
+
+			StreamHandle(String path, String encoding, int chunkSize, StreamCallback callback, Object context) {
+				this.path = path;
+				this.encoding = encoding;
+				this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+				this.callback = callback;
+				this.context = context;
+				this.handler = new android.os.Handler(Looper.myLooper());
+			}
 
-			int size = src.available();
+			/**
+			 * Allows up to count more chunks to be read and delivered.
+			 */
+			public void request(int count) {
+				if (count <= 0 || finished) {
+					return;
+				}
+				credits.addAndGet(count);
+				schedule();
+			}
 
-			int written = fastChannelCopy(isc, osc);
+			/**
+			 * Stops reading and closes the file; no more callbacks are made.
+			 */
+			public void cancel() {
+				cancelled = true;
+				schedule();
+			}
 
-			return size == written;
-		}
+			public boolean isDone() {
+				return finished;
+			}
 
-		public static void copy(final String src, final String dest, final CompleteCallback callback, final Context context) {
-			try {
-				InputStream is;
-				OutputStream os;
+			private void schedule() {
+				if (!finished && scheduled.compareAndSet(false, true)) {
+					execute(this);
+				}
+			}
 
-				boolean requiresUpdate = false;
+			@Override
+			public void run() {
+				try {
+					if (channel == null && !cancelled) {
+						open();
+					}
 
-				if(src.startsWith("content://")){
-					is = context.getContentResolver().openInputStream(Uri.parse(src));
-				}else is = new FileInputStream(new java.io.File(src));
+					while (credits.get() > 0 && !cancelled) {
+						final Object chunk = encoding != null ? readLineBatch() : readChunk();
+						if (chunk == null) {
+							end();
+							return;
+						}
 
-				if(dest.startsWith("content://")){
-					requiresUpdate = true;
-					os = context.getContentResolver().openOutputStream(Uri.parse(dest));
-				}else os = new FileOutputStream(new java.io.File(dest));
+						credits.decrementAndGet();
+						deliver(handler, new Runnable() {
+							@Override
+							public void run() {
+								if (!cancelled) {
+									callback.onChunk(chunk, context);
+								}
+							}
+						});
 
-				boolean finalRequiresUpdate = requiresUpdate;
-				copy(is, os, new CompleteCallback() {
-					@Override
-					public void onComplete(Object result, Object tag) {
-						if(finalRequiresUpdate){
-							updateValue(context, Uri.parse(dest));
+						// report the end right away instead of waiting for a credit that would only find nothing
+						if (isAtEnd()) {
+							end();
+							return;
 						}
-						callback.onComplete(result, tag);
 					}
 
-					@Override
-					public void onError(String error, Object tag) {
-						callback.onError(error, tag);
+					if (cancelled) {
+						finish();
 					}
-				}, context);
+				} catch (final Exception e) {
+					finish();
+					deliver(handler, new Runnable() {
+						@Override
+						public void run() {
+							callback.onError(e.getMessage(), context);
+						}
+					});
+				} finally {
+					scheduled.set(false);
+				}
 
-			}catch (Exception exception){
-				callback.onError(exception.getMessage(), context);
+				// credits or a cancel may have arrived after the loop gave up
+				if (!finished && (cancelled || credits.get() > 0)) {
+					schedule();
+				}
 			}
-		}
 
-		private static int fastChannelCopy(final ReadableByteChannel src,
-											final WritableByteChannel dest) throws IOException {
-			int written = 0;
-			final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
-			while (src.read(buffer) != -1) {
-				// prepare the buffer to be drained
-				buffer.flip();
-				// write to the channel, may block
-				written += dest.write(buffer);
-				// If partial transfer, shift remainder down
-				// If buffer is empty, same as doing clear()
-				buffer.compact();
+			private void open() throws IOException {
+				channel = new FileInputStream(path).getChannel();
+				if (encoding != null) {
+					bytes = ByteBuffer.allocateDirect(chunkSize);
+					decoder = Charset.forName(encoding).newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
+					chars = CharBuffer.allocate((int) Math.ceil(chunkSize * (double) decoder.maxCharsPerByte()));
+				}
 			}
-			// EOF will leave buffer in fill state
-			buffer.flip();
-			// make sure the buffer is fully drained.
-			while (buffer.hasRemaining()) {
-				written += dest.write(buffer);
+
+			private void end() {
+				finish();
+				deliver(handler, new Runnable() {
+					@Override
+					public void run() {
+						if (!cancelled) {
+							callback.onEnd(context);
+						}
+					}
+				});
 			}
-			return written;
-		}
 
-		public static void copy(final InputStream src, final OutputStream dest, final CompleteCallback callback, final Object context) {
-			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute((Runnable) () -> {
+			private void finish() {
+				finished = true;
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						Log.e(TAG, "Failed to close file, IOException: " + e.getMessage());
+					}
+					channel = null;
+				}
+			}
 
-				boolean done = false;
-				Exception error = null;
-				try (InputStream is = src; OutputStream os = dest){
-					ReadableByteChannel isc = java.nio.channels.Channels.newChannel(is);
-					WritableByteChannel osc = java.nio.channels.Channels.newChannel(os);
+			private boolean isAtEnd() throws IOException {
+				if (encoding != null) {
+					return endOfInput && partialLine.length() == 0;
+				}
+				return channel.position() >= channel.size();
+			}
+
+			// reads straight into the buffer that is handed out, sized to what is left of the file
+			private ByteBuffer readChunk() throws IOException {
+				long left = channel.size() - channel.position();
+				if (left <= 0) {
+					return null;
+				}
+
+				ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(chunkSize, left));
+				while (chunk.hasRemaining()) {
+					if (channel.read(chunk) == -1) {
+						break;
+					}
+				}
+				if (chunk.position() == 0) {
+					return null;
+				}
 
-					int size = src.available();
+				chunk.flip();
+				return chunk;
+			}
 
-					int written = fastChannelCopy(isc, osc);
+			private String[] readLineBatch() throws IOException {
+				ArrayList<String> lines = new ArrayList<String>();
+				while (lines.isEmpty()) {
+					if (endOfInput) {
+						if (partialLine.length() == 0) {
+							return null;
+						}
+						lines.add(partialLine.toString());
+						partialLine.setLength(0);
+						break;
+					}
 
-					done = size == written;
+					// undecoded bytes of a split character stay at the start of the buffer
+					if (channel.read(bytes) == -1 || channel.position() >= channel.size()) {
+						endOfInput = true;
+					}
+					bytes.flip();
+					decoder.decode(bytes, chars, endOfInput);
+					if (endOfInput) {
+						decoder.flush(chars);
+					}
+					bytes.compact();
 
-				} catch (Exception e) {
-					error = e;
+					chars.flip();
+					splitLines(chars, lines);
+					chars.clear();
+				}
 
-				}finally {
-					if (error != null){
-						Exception finalError = error;
-						mHandler.post(() -> callback.onError(finalError.getMessage(), context));
-					}else {
-						boolean finalDone = done;
-						mHandler.post(() -> callback.onComplete(finalDone, context));
+				return lines.toArray(new String[lines.size()]);
+			}
+
+			private void splitLines(CharBuffer text, ArrayList<String> lines) {
+				char[] array = text.array();
+				int start = text.arrayOffset() + text.position();
+				int end = text.arrayOffset() + text.limit();
+				int lineStart = start;
+				for (int i = start; i < end; i++) {
+					char c = array[i];
+					if (c == '\n' && skipLineFeed) {
+						// the second half of a \r\n that was split between two reads
+						skipLineFeed = false;
+						lineStart = i + 1;
+						continue;
+					}
+					skipLineFeed = false;
+					if (c == '\n' || c == '\r') {
+						partialLine.append(array, lineStart, i - lineStart);
+						lines.add(partialLine.toString());
+						partialLine.setLength(0);
+						if (c == '\r') {
+							if (i + 1 < end) {
+								if (array[i + 1] == '\n') {
+									i++;
+								}
+							} else {
+								skipLineFeed = true;
+							}
+						}
+						lineStart = i + 1;
 					}
 				}
-			});
+				partialLine.append(array, lineStart, end - lineStart);
+			}
 		}
 
-		public static void readText(final String path, final String encoding, final CompleteCallback callback, final Object context) {
+		public static void writeText(final String path, final String content, final String encoding, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final ReadTextTask task = new ReadTextTask(callback, context);
-					final String result = task.doInBackground(path, encoding);
-					mHandler.post(new Runnable() {
+					final WriteTextTask task = new WriteTextTask(callback, context);
+					final boolean result = task.doInBackground(path, content, encoding);
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -829,14 +5631,14 @@ public class Async {
 			});
 		}
 
-		public static void read(final String path, final CompleteCallback callback, final Object context) {
+		public static void write(final String path, final byte[] content, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final ReadTask task = new ReadTask(callback, context);
-					final byte[] result = task.doInBackground(path);
-					mHandler.post(new Runnable() {
+					final WriteTask task = new WriteTask(callback, context);
+					final boolean result = task.doInBackground(path, content);
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -846,31 +5648,109 @@ public class Async {
 			});
 		}
 
-		public static void readBuffer(final String path, final CompleteCallback callback, final Object context) {
+		public static void writeBuffer(final String path, final ByteBuffer content, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final ReadBufferTask task = new ReadBufferTask(callback, context);
-					final ByteBuffer result = task.doInBackground(path);
-					mHandler.post(new Runnable() {
+					final WriteBufferTask task = new WriteBufferTask(callback, context);
+					final boolean result = task.doInBackground(path, content);
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
 						}
 					});
 				}
-			});
+			});
+		}
+
+		public static final int ATOMIC_NO_SYNC = 0;
+		public static final int ATOMIC_SYNC_FILE = 1;
+		public static final int ATOMIC_SYNC_ALL = 2;
+		static final int WRITE_IN_PLACE = -1;
+
+		interface StreamWriter {
+			void write(FileOutputStream stream) throws IOException;
+		}
+
+		/**
+		 * Writes the target in place, or with mode set to one of the ATOMIC_* policies, into a temp file next to it
+		 * that is then renamed over it, so that a crash leaves either the old or the new content and never a torn
+		 * file. ATOMIC_NO_SYNC relies on the filesystem writing the data before the rename, which ext4 does
+		 * for files replaced by rename but other filesystems may not; ATOMIC_SYNC_FILE fsyncs the temp file before the rename, so the new
+		 * content is complete whenever it is visible; ATOMIC_SYNC_ALL also fsyncs the directory, so the rename
+		 * itself survives a crash once the write completes. The replacement keeps the permissions of the file it replaces.
+		 */
+		static void writeFile(java.io.File target, int mode, StreamWriter writer) throws IOException {
+			if (mode == WRITE_IN_PLACE) {
+				try (FileOutputStream stream = new FileOutputStream(target)) {
+					writer.write(stream);
+				}
+				return;
+			}
+
+			java.io.File directory = target.getAbsoluteFile().getParentFile();
+			java.io.File temp = java.io.File.createTempFile("." + target.getName() + ".", ".tmp", directory);
+			boolean renamed = false;
+			try {
+				// the temp file has the default mode for new files, the replacement keeps the mode the target had
+				copyMode(target, temp);
+				try (FileOutputStream stream = new FileOutputStream(temp)) {
+					writer.write(stream);
+					if (mode != ATOMIC_NO_SYNC) {
+						stream.getFD().sync();
+					}
+				}
+				if (!temp.renameTo(target)) {
+					throw new IOException("Failed to rename " + temp.getPath() + " to " + target.getPath());
+				}
+				renamed = true;
+			} finally {
+				if (!renamed) {
+					temp.delete();
+				}
+			}
+			if (mode == ATOMIC_SYNC_ALL) {
+				syncDirectory(directory);
+			}
+		}
+
+		private static void copyMode(java.io.File from, java.io.File to) throws IOException {
+			try {
+				StructStat stat = Os.stat(from.getPath());
+				Os.chmod(to.getPath(), stat.st_mode & 07777);
+			} catch (ErrnoException e) {
+				if (e.errno != OsConstants.ENOENT) {
+					throw e.rethrowAsIOException();
+				}
+			}
+		}
+
+		static void syncDirectory(java.io.File directory) throws IOException {
+			try {
+				FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+				try {
+					Os.fsync(fd);
+				} finally {
+					Os.close(fd);
+				}
+			} catch (ErrnoException e) {
+				throw e.rethrowAsIOException();
+			}
 		}
 
-		public static void writeText(final String path, final String content, final String encoding, final CompleteCallback callback, final Object context) {
+		/**
+		 * Like {@link #writeText}, but replaces the file atomically, see {@link #writeFile} for the sync policies.
+		 */
+		public static void writeTextAtomic(final String path, final String content, final String encoding, final int syncPolicy, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final WriteTextTask task = new WriteTextTask(callback, context);
+					final WriteTextTask task = new WriteTextTask(callback, context, syncPolicy);
 					final boolean result = task.doInBackground(path, content, encoding);
-					mHandler.post(new Runnable() {
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -880,14 +5760,14 @@ public class Async {
 			});
 		}
 
-		public static void write(final String path, final byte[] content, final CompleteCallback callback, final Object context) {
+		public static void writeAtomic(final String path, final byte[] content, final int syncPolicy, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final WriteTask task = new WriteTask(callback, context);
+					final WriteTask task = new WriteTask(callback, context, syncPolicy);
 					final boolean result = task.doInBackground(path, content);
-					mHandler.post(new Runnable() {
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -897,14 +5777,14 @@ public class Async {
 			});
 		}
 
-		public static void writeBuffer(final String path, final ByteBuffer content, final CompleteCallback callback, final Object context) {
+		public static void writeBufferAtomic(final String path, final ByteBuffer content, final int syncPolicy, final CompleteCallback callback, final Object context) {
 			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
-			threadPoolExecutor().execute(new Runnable() {
+			execute(path, new Runnable() {
 				@Override
 				public void run() {
-					final WriteBufferTask task = new WriteBufferTask(callback, context);
+					final WriteBufferTask task = new WriteBufferTask(callback, context, syncPolicy);
 					final boolean result = task.doInBackground(path, content);
-					mHandler.post(new Runnable() {
+					deliver(mHandler, new Runnable() {
 						@Override
 						public void run() {
 							task.onPostExecute(result);
@@ -914,6 +5794,131 @@ public class Async {
 			});
 		}
 
+		/**
+		 * Returns the charset for encodings that take the fast text path (UTF-8 and ASCII), or null for everything else.
+		 */
+		static Charset fastTextCharset(String encoding) {
+			if (encoding == null) {
+				return null;
+			}
+
+			String name = encoding.replace("-", "").replace("_", "").toLowerCase(Locale.ENGLISH);
+			if (name.equals("utf8")) {
+				return StandardCharsets.UTF_8;
+			} else if (name.equals("ascii") || name.equals("usascii")) {
+				return StandardCharsets.US_ASCII;
+			}
+
+			return null;
+		}
+
+		/**
+		 * Reads the rest of the file into a byte array sized from the file length and decodes it in one pass, which
+		 * takes the platform's native decoder instead of a Reader growing a StringBuilder.
+		 */
+		static String readText(FileChannel channel, Charset charset) throws IOException {
+			long remaining = channel.size() - channel.position();
+			if (remaining > Integer.MAX_VALUE) {
+				throw new IOException("File is too large to be read as a string");
+			}
+
+			byte[] bytes = new byte[(int) remaining];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) == -1) {
+					break;
+				}
+			}
+
+			return new String(bytes, 0, buffer.position(), charset);
+		}
+
+		// up to this many chars the text is encoded with a single getBytes, larger texts in segments to bound memory use
+		private static final int SMALL_TEXT_LENGTH = 256 * 1024;
+		private static final int TEXT_SEGMENT_LENGTH = 8 * 1024;
+		private static final int MAX_POOLED_TEXT_SEGMENTS = 4;
+		private static final ArrayDeque<TextSegment> textSegments = new ArrayDeque<TextSegment>();
+
+		/**
+		 * The two arrays a large text is encoded through. Both sides of the encoder are array backed, which keeps
+		 * it on its fast path; four bytes per char hold any segment in UTF-8 or ASCII.
+		 */
+		private static final class TextSegment {
+			final char[] chars = new char[TEXT_SEGMENT_LENGTH];
+			final CharBuffer charBuffer = CharBuffer.wrap(chars);
+			final ByteBuffer bytes = ByteBuffer.allocate(TEXT_SEGMENT_LENGTH * 4);
+		}
+
+		/**
+		 * Encodes small strings in one call, and large ones segment by segment through a pooled {@link TextSegment},
+		 * so that no array as large as the whole encoded text is ever allocated and repeated writes allocate next to
+		 * nothing. Unmappable characters become '?', as with getBytes.
+		 */
+		static void writeText(FileChannel channel, String content, Charset charset) throws IOException {
+			int length = content.length();
+			if (length <= SMALL_TEXT_LENGTH) {
+				ByteBuffer bytes = ByteBuffer.wrap(content.getBytes(charset));
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+				return;
+			}
+
+			CharsetEncoder encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			TextSegment segment = acquireTextSegment();
+			try {
+				CharBuffer chars = segment.charBuffer;
+				ByteBuffer buffer = segment.bytes;
+				buffer.clear();
+				int offset = 0;
+				while (offset < length) {
+					int end = Math.min(length, offset + TEXT_SEGMENT_LENGTH);
+					if (end < length && Character.isHighSurrogate(content.charAt(end - 1))) {
+						// keep surrogate pairs within one segment
+						end--;
+					}
+					content.getChars(offset, end, segment.chars, 0);
+					chars.limit(end - offset);
+					chars.position(0);
+					encoder.encode(chars, buffer, end == length);
+					drain(channel, buffer);
+					offset = end;
+				}
+				encoder.flush(buffer);
+				drain(channel, buffer);
+			} finally {
+				releaseTextSegment(segment);
+			}
+		}
+
+		private static TextSegment acquireTextSegment() {
+			synchronized (textSegments) {
+				TextSegment segment = textSegments.poll();
+				if (segment != null) {
+					return segment;
+				}
+			}
+			return new TextSegment();
+		}
+
+		private static void releaseTextSegment(TextSegment segment) {
+			synchronized (textSegments) {
+				if (textSegments.size() < MAX_POOLED_TEXT_SEGMENTS) {
+					textSegments.push(segment);
+				}
+			}
+		}
+
+		private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
 		static class ReadTextTask {
 			private final CompleteCallback callback;
 			private final Object context;
@@ -930,6 +5935,11 @@ public class Async {
 				try {
 					stream = new FileInputStream(javaFile);
 
+					Charset charset = fastTextCharset(params[1]);
+					if (charset != null) {
+						return readText(stream.getChannel(), charset);
+					}
+
 					InputStreamReader reader = new InputStreamReader(stream, params[1]);
 
 					CharBuffer buffer = CharBuffer.allocate(81920);
@@ -1021,6 +6031,61 @@ public class Async {
 			}
 		}
 
+		static class MapBufferTask {
+			private final CompleteCallback callback;
+			private final Object context;
+			private String error;
+
+			public MapBufferTask(CompleteCallback callback, Object context) {
+				this.callback = callback;
+				this.context = context;
+			}
+
+			protected ByteBuffer doInBackground(String path, long offset, long length) {
+				RandomAccessFile file = null;
+
+				try {
+					file = new RandomAccessFile(path, "r");
+					FileChannel channel = file.getChannel();
+					long size = channel.size();
+					if (offset < 0 || offset > size) {
+						error = "Offset " + offset + " is outside of the file (" + size + " bytes).";
+						return null;
+					}
+
+					long count = length < 0 ? size - offset : Math.min(length, size - offset);
+					if (count > Integer.MAX_VALUE) {
+						error = "Cannot map more than " + Integer.MAX_VALUE + " bytes at once, use a range.";
+						return null;
+					}
+
+					return channel.map(FileChannel.MapMode.READ_ONLY, offset, count);
+				} catch (FileNotFoundException e) {
+					Log.e(TAG, "Failed to map file, FileNotFoundException: " + e.getMessage());
+					return null;
+				} catch (IOException e) {
+					Log.e(TAG, "Failed to map file, IOException: " + e.getMessage());
+					return null;
+				} finally {
+					if (file != null) {
+						try {
+							file.close();
+						} catch (IOException e) {
+							Log.e(TAG, "Failed to close file, IOException: " + e.getMessage());
+						}
+					}
+				}
+			}
+
+			protected void onPostExecute(final ByteBuffer result) {
+				if (result != null) {
+					this.callback.onComplete(result, this.context);
+				} else {
+					this.callback.onError(error != null ? error : "MapBufferTask returns no result.", this.context);
+				}
+			}
+		}
+
 		static class ReadBufferTask {
 			private final CompleteCallback callback;
 			private final Object context;
@@ -1039,9 +6104,14 @@ public class Async {
 
 					ByteBuffer buffer = ByteBuffer.allocateDirect((int) javaFile.length());
 
+					// a single read may return fewer bytes than asked for
 					FileChannel channel = stream.getChannel();
-					channel.read(buffer);
-					buffer.rewind();
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer) == -1) {
+							break;
+						}
+					}
+					buffer.flip();
 
 					return buffer;
 				} catch (FileNotFoundException e) {
@@ -1073,21 +6143,35 @@ public class Async {
 		static class WriteTextTask {
 			private final CompleteCallback callback;
 			private final Object context;
+			private final int mode;
 
 			public WriteTextTask(CompleteCallback callback, Object context) {
+				this(callback, context, WRITE_IN_PLACE);
+			}
+
+			WriteTextTask(CompleteCallback callback, Object context, int mode) {
 				this.callback = callback;
 				this.context = context;
+				this.mode = mode;
 			}
 
-			protected boolean doInBackground(String... params) {
+			protected boolean doInBackground(final String... params) {
 				java.io.File javaFile = new java.io.File(params[0]);
-				FileOutputStream stream = null;
 				try {
-					stream = new FileOutputStream(javaFile);
+					writeFile(javaFile, mode, new StreamWriter() {
+						@Override
+						public void write(FileOutputStream stream) throws IOException {
+							Charset charset = fastTextCharset(params[2]);
+							if (charset != null) {
+								writeText(stream.getChannel(), params[1], charset);
+								return;
+							}
 
-					OutputStreamWriter writer = new OutputStreamWriter(stream, params[2]);
-					writer.write(params[1]);
-					writer.close();
+							OutputStreamWriter writer = new OutputStreamWriter(stream, params[2]);
+							writer.write(params[1]);
+							writer.flush();
+						}
+					});
 
 					return true;
 				} catch (FileNotFoundException e) {
@@ -1099,14 +6183,6 @@ public class Async {
 				} catch (IOException e) {
 					Log.e(TAG, "Failed to write file, IOException: " + e.getMessage());
 					return false;
-				} finally {
-					if (stream != null) {
-						try {
-							stream.close();
-						} catch (IOException e) {
-							Log.e(TAG, "Failed to close stream, IOException: " + e.getMessage());
-						}
-					}
 				}
 			}
 
@@ -1122,20 +6198,29 @@ public class Async {
 		static class WriteTask {
 			private final CompleteCallback callback;
 			private final Object context;
+			private final int mode;
 
 			public WriteTask(CompleteCallback callback, Object context) {
+				this(callback, context, WRITE_IN_PLACE);
+			}
+
+			WriteTask(CompleteCallback callback, Object context, int mode) {
 				this.callback = callback;
 				this.context = context;
+				this.mode = mode;
 			}
 
 			protected boolean doInBackground(Object... params) {
 				java.io.File javaFile = new java.io.File((String) params[0]);
-				FileOutputStream stream = null;
-				byte[] content = (byte[]) params[1];
+				final byte[] content = (byte[]) params[1];
 
 				try {
-					stream = new FileOutputStream(javaFile);
-					stream.write(content, 0, content.length);
+					writeFile(javaFile, mode, new StreamWriter() {
+						@Override
+						public void write(FileOutputStream stream) throws IOException {
+							stream.write(content, 0, content.length);
+						}
+					});
 
 					return true;
 				} catch (FileNotFoundException e) {
@@ -1144,14 +6229,6 @@ public class Async {
 				} catch (IOException e) {
 					Log.e(TAG, "Failed to write file, IOException: " + e.getMessage());
 					return false;
-				} finally {
-					if (stream != null) {
-						try {
-							stream.close();
-						} catch (IOException e) {
-							Log.e(TAG, "Failed to close stream, IOException: " + e.getMessage());
-						}
-					}
 				}
 			}
 
@@ -1167,23 +6244,34 @@ public class Async {
 		static class WriteBufferTask {
 			private final CompleteCallback callback;
 			private final Object context;
+			private final int mode;
 
 			public WriteBufferTask(CompleteCallback callback, Object context) {
+				this(callback, context, WRITE_IN_PLACE);
+			}
+
+			WriteBufferTask(CompleteCallback callback, Object context, int mode) {
 				this.callback = callback;
 				this.context = context;
+				this.mode = mode;
 			}
 
 			protected boolean doInBackground(Object... params) {
 				java.io.File javaFile = new java.io.File((String) params[0]);
-				FileOutputStream stream = null;
-				ByteBuffer content = (ByteBuffer) params[1];
+				final ByteBuffer content = (ByteBuffer) params[1];
 
 				try {
-					stream = new FileOutputStream(javaFile);
-					FileChannel channel = stream.getChannel();
-					content.rewind();
-					channel.write(content);
-					content.rewind();
+					writeFile(javaFile, mode, new StreamWriter() {
+						@Override
+						public void write(FileOutputStream stream) throws IOException {
+							FileChannel channel = stream.getChannel();
+							content.rewind();
+							while (content.hasRemaining()) {
+								channel.write(content);
+							}
+							content.rewind();
+						}
+					});
 					return true;
 				} catch (FileNotFoundException e) {
 					Log.e(TAG, "Failed to write file, FileNotFoundException: " + e.getMessage());
@@ -1191,14 +6279,6 @@ public class Async {
 				} catch (IOException e) {
 					Log.e(TAG, "Failed to write file, IOException: " + e.getMessage());
 					return false;
-				} finally {
-					if (stream != null) {
-						try {
-							stream.close();
-						} catch (IOException e) {
-							Log.e(TAG, "Failed to close stream, IOException: " + e.getMessage());
-						}
-					}
 				}
 			}
 
@@ -1318,6 +6398,12 @@ public class Async {
 				try {
 					stream = new FileOutputStream(javaFile, true);
 
+					Charset charset = fastTextCharset(params[2]);
+					if (charset != null) {
+						writeText(stream.getChannel(), params[1], charset);
+						return true;
+					}
+
 					OutputStreamWriter writer = new OutputStreamWriter(stream, params[2]);
 					writer.write(params[1]);
 					writer.close();
@@ -1353,4 +6439,345 @@ public class Async {
 		}
 
 	}
+
+	/**
+	 * Zip archives, handled natively so that extracting an update costs one call instead of one write per entry.
+	 */
+	public static class Zip {
+		// the buffered output of an archive being written
+		private static final int BUFFER_SIZE = 64 * 1024;
+
+		/**
+		 * Extracts archive into destination and completes with the number of files extracted. Like other File operations
+		 * it runs after those queued earlier for destination; the entries are then spread over up to parallelism workers
+		 * on the directory pool, each reading its own handle on the archive, and every file is checked against the CRC
+		 * recorded in the archive. Progress is in uncompressed bytes. Entry names that would land outside destination
+		 * fail the whole extraction before anything is written, and when several entries name the same file the last
+		 * one wins. A cancelled or failed extraction removes the file it was writing and leaves the ones already done.
+		 */
+		public static File.TaskHandle unzip(final String archive, final String destination, final int parallelism, final ProgressCallback progressCallback, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final File.TaskHandle handle = new File.TaskHandle();
+			final ProgressReporter progress = ProgressReporter.create(progressCallback, context, mHandler, File.PROGRESS_INTERVAL);
+			File.execute(destination, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final long count = unzipSync(archive, destination, parallelism, handle, progress);
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onComplete(count, context);
+							}
+						});
+					} catch (final Exception e) {
+						Log.e(TAG, "Failed to unzip file, " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onError(e.getMessage(), context);
+							}
+						});
+					}
+				}
+			});
+			return handle;
+		}
+
+		/**
+		 * Compresses the tree under source into archive, entry names relative to source, and completes with the number
+		 * of files added. level is a Deflater level, -1 for the default. Progress is in uncompressed bytes. Symbolic
+		 * links are skipped. Like other File operations it runs after those queued earlier for archive.
+		 */
+		public static File.TaskHandle zip(final String source, final String archive, final int level, final ProgressCallback progressCallback, final CompleteCallback callback, final Object context) {
+			final android.os.Handler mHandler = new android.os.Handler(Looper.myLooper());
+			final File.TaskHandle handle = new File.TaskHandle();
+			final ProgressReporter progress = ProgressReporter.create(progressCallback, context, mHandler, File.PROGRESS_INTERVAL);
+			File.execute(archive, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final long count = zipSync(source, archive, level, handle, progress);
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onComplete(count, context);
+							}
+						});
+					} catch (final Exception e) {
+						new java.io.File(archive).delete();
+						Log.e(TAG, "Failed to zip file, " + e.getClass().getSimpleName() + ": " + e.getMessage());
+						deliver(mHandler, new Runnable() {
+							@Override
+							public void run() {
+								callback.onError(e.getMessage(), context);
+							}
+						});
+					}
+				}
+			});
+			return handle;
+		}
+
+		static long unzipSync(final String archive, final String destination, int parallelism, final File.TaskHandle handle, final ProgressReporter progress) throws Exception {
+			final java.io.File root = new java.io.File(destination).getCanonicalFile();
+			final String rootPath = root.getPath() + java.io.File.separator;
+			ArrayList<ZipEntry> files = new ArrayList<ZipEntry>();
+			final ArrayList<java.io.File> targets = new ArrayList<java.io.File>();
+			HashMap<java.io.File, Integer> indexOfTarget = new HashMap<java.io.File, Integer>();
+			LinkedHashSet<java.io.File> directories = new LinkedHashSet<java.io.File>();
+
+			// every name is checked before anything is created on disk
+			try (ZipFile zip = new ZipFile(archive)) {
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry entry = entries.nextElement();
+					java.io.File target = new java.io.File(root, entry.getName()).getCanonicalFile();
+					// zip slip: "../" or absolute names must not escape the destination
+					if (!target.getPath().startsWith(rootPath) && !target.equals(root)) {
+						throw new IOException("Entry " + entry.getName() + " is outside of the destination");
+					}
+					if (entry.isDirectory()) {
+						directories.add(target);
+						continue;
+					}
+					directories.add(target.getParentFile());
+					// two workers must never write the same file; extracting in order, the last entry would win
+					Integer index = indexOfTarget.get(target);
+					if (index != null) {
+						files.set(index, entry);
+						continue;
+					}
+					indexOfTarget.put(target, files.size());
+					files.add(entry);
+					targets.add(target);
+				}
+			}
+
+			for (java.io.File directory : directories) {
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					throw new IOException("Failed to create " + directory.getPath());
+				}
+			}
+
+			long total = 0;
+			for (ZipEntry entry : files) {
+				total = total >= 0 && entry.getSize() >= 0 ? total + entry.getSize() : -1;
+			}
+			if (progress != null) {
+				progress.setTotal(total);
+			}
+
+			// hand out the largest entries first, each to the least loaded worker, so that the workers finish together
+			Integer[] order = new Integer[files.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			final ArrayList<ZipEntry> sorted = files;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Long.compare(sorted.get(b).getCompressedSize(), sorted.get(a).getCompressedSize());
+				}
+			});
+			int workerCount = Math.max(1, Math.min(parallelism, order.length));
+			final ArrayList<ArrayList<Integer>> assignments = new ArrayList<ArrayList<Integer>>();
+			long[] load = new long[workerCount];
+			for (int i = 0; i < workerCount; i++) {
+				assignments.add(new ArrayList<Integer>());
+			}
+			for (Integer index : order) {
+				int least = 0;
+				for (int i = 1; i < workerCount; i++) {
+					if (load[i] < load[least]) {
+						least = i;
+					}
+				}
+				assignments.get(least).add(index);
+				load[least] += Math.max(1, sorted.get(index).getCompressedSize());
+			}
+
+			final Extraction extraction = new Extraction(handle, progress);
+			final ArrayList<RecursiveAction> workers = new ArrayList<RecursiveAction>();
+			for (final ArrayList<Integer> assignment : assignments) {
+				workers.add(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						extraction.extract(archive, sorted, targets, assignment);
+					}
+				});
+			}
+			// this runs on the file executor, the workers belong on the directory pool
+			File.treePool().invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(workers);
+				}
+			});
+			if (progress != null) {
+				progress.flush();
+			}
+			if (handle.isCancelled()) {
+				throw new InterruptedIOException("Unzip cancelled");
+			}
+			if (extraction.error != null) {
+				throw extraction.error;
+			}
+			return files.size();
+		}
+
+		/**
+		 * State shared by the workers of one extraction.
+		 */
+		static final class Extraction {
+			final File.TaskHandle handle;
+			final ProgressReporter progress;
+			volatile IOException error;
+			private long transferred;
+
+			Extraction(File.TaskHandle handle, ProgressReporter progress) {
+				this.handle = handle;
+				this.progress = progress;
+			}
+
+			boolean isStopped() {
+				return error != null || handle.isCancelled();
+			}
+
+			void advance(long amount) {
+				if (progress != null) {
+					synchronized (this) {
+						transferred += amount;
+						progress.update(transferred);
+					}
+				}
+			}
+
+			void extract(String archive, ArrayList<ZipEntry> entries, ArrayList<java.io.File> targets, ArrayList<Integer> assignment) {
+				if (assignment.isEmpty()) {
+					return;
+				}
+				byte[] buffer = ByteArrayPool.acquire();
+				CRC32 crc = new CRC32();
+				// a ZipFile per worker, so that workers do not take turns on one file handle
+				try (ZipFile zip = new ZipFile(archive)) {
+					for (Integer index : assignment) {
+						if (isStopped()) {
+							return;
+						}
+						ZipEntry entry = entries.get(index);
+						java.io.File target = targets.get(index);
+						boolean done = false;
+						try (InputStream is = zip.getInputStream(entry); FileOutputStream os = new FileOutputStream(target)) {
+							crc.reset();
+							int n;
+							while ((n = is.read(buffer)) != -1) {
+								if (handle.isCancelled()) {
+									throw new InterruptedIOException("Unzip cancelled");
+								}
+								crc.update(buffer, 0, n);
+								os.write(buffer, 0, n);
+								advance(n);
+							}
+							if (entry.getCrc() != -1 && crc.getValue() != entry.getCrc()) {
+								throw new ZipException("CRC mismatch for " + entry.getName());
+							}
+							done = true;
+						} finally {
+							if (!done) {
+								target.delete();
+							}
+						}
+					}
+				} catch (IOException e) {
+					if (error == null && !handle.isCancelled()) {
+						error = e;
+					}
+				} finally {
+					ByteArrayPool.release(buffer);
+				}
+			}
+		}
+
+		static long zipSync(final String source, final String archive, final int level, final File.TaskHandle handle, final ProgressReporter progress) throws IOException {
+			java.io.File root = new java.io.File(source);
+			ArrayList<java.io.File> files = new ArrayList<java.io.File>();
+			ArrayList<String> names = new ArrayList<String>();
+			long total = collect(root, "", files, names);
+			if (progress != null) {
+				progress.setTotal(total);
+			}
+
+			byte[] buffer = ByteArrayPool.acquire();
+			long transferred = 0;
+			try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive), BUFFER_SIZE))) {
+				zos.setLevel(level);
+				for (int i = 0; i < files.size(); i++) {
+					java.io.File file = files.get(i);
+					ZipEntry entry = new ZipEntry(names.get(i));
+					entry.setTime(file.lastModified());
+					zos.putNextEntry(entry);
+					if (file.isFile()) {
+						try (FileInputStream is = new FileInputStream(file)) {
+							int n;
+							while ((n = is.read(buffer)) != -1) {
+								if (handle.isCancelled()) {
+									throw new InterruptedIOException("Zip cancelled");
+								}
+								zos.write(buffer, 0, n);
+								transferred += n;
+								if (progress != null) {
+									progress.update(transferred);
+								}
+							}
+						}
+					}
+					zos.closeEntry();
+				}
+			} finally {
+				ByteArrayPool.release(buffer);
+			}
+			if (progress != null) {
+				progress.flush();
+			}
+
+			long count = 0;
+			for (java.io.File file : files) {
+				if (file.isFile()) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Lists the tree under directory in a stable order, directories as "name/" entries so that empty ones survive,
+		 * and returns the total size of the files.
+		 */
+		private static long collect(java.io.File directory, String prefix, ArrayList<java.io.File> files, ArrayList<String> names) throws IOException {
+			java.io.File[] children = directory.listFiles();
+			if (children == null) {
+				throw new IOException("Failed to list " + directory.getPath());
+			}
+			Arrays.sort(children);
+			long total = 0;
+			for (java.io.File child : children) {
+				StructStat stat = File.lstat(child);
+				if (stat == null || OsConstants.S_ISLNK(stat.st_mode)) {
+					continue;
+				}
+				String name = prefix + child.getName();
+				if (OsConstants.S_ISDIR(stat.st_mode)) {
+					files.add(child);
+					names.add(name + "/");
+					total += collect(child, name + "/", files, names);
+				} else if (OsConstants.S_ISREG(stat.st_mode)) {
+					files.add(child);
+					names.add(name);
+					total += stat.st_size;
+				}
+			}
+			return total;
+		}
+	}
 }
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -676,6 +677,130 @@ public class FileHelper {
 		});
 	}
 
+	private interface Body {
+		void write(OutputStream os) throws IOException;
+	}
+
+	/**
+	 * file:// uris are replaced atomically through a temp file and a rename, see Async.File.writeFile for the sync
+	 * policies. Content uris cannot be renamed over, so they are written in place like writeSync does.
+	 */
+	private void writeAtomicInternal(Context context, int syncPolicy, final Body body) throws Exception {
+		if ("file".equals(uri.getScheme())) {
+			Async.File.writeFile(new File(uri.getPath()), syncPolicy, new Async.File.StreamWriter() {
+				@Override
+				public void write(FileOutputStream stream) throws IOException {
+					body.write(stream);
+				}
+			});
+		} else {
+			OutputStream os = getOutputStream(context, uri, false);
+			body.write(os);
+			os.flush();
+			os.close();
+		}
+		try {
+			updateInternal(context);
+		} catch (Exception exception){
+			Log.e(TAG, "Failed to updateValue: " + exception.getMessage());
+		}
+	}
+
+	private void writeAtomicSyncInternal(Context context, final byte[] content, int syncPolicy) throws Exception {
+		writeAtomicInternal(context, syncPolicy, new Body() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				os.write(content, 0, content.length);
+			}
+		});
+	}
+
+	private void writeBufferAtomicSyncInternal(Context context, final ByteBuffer content, int syncPolicy) throws Exception {
+		writeAtomicInternal(context, syncPolicy, new Body() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				WritableByteChannel channel = Channels.newChannel(os);
+				while (content.hasRemaining()) {
+					channel.write(content);
+				}
+			}
+		});
+	}
+
+	private void writeTextAtomicSyncInternal(Context context, final String content, @Nullable final String encoding, int syncPolicy) throws Exception {
+		writeAtomicInternal(context, syncPolicy, new Body() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				OutputStreamWriter osw = new OutputStreamWriter(os, encoding != null ? encoding : "UTF-8");
+				osw.write(content);
+				osw.flush();
+			}
+		});
+	}
+
+	public void writeAtomicSync(Context context, byte[] content, int syncPolicy, @Nullable Callback callback) {
+		try {
+			writeAtomicSyncInternal(context, content, syncPolicy);
+		} catch (Exception e) {
+			if (callback != null) {
+				callback.onError(e);
+			}
+		}
+	}
+
+	public void writeAtomic(Context context, byte[] content, int syncPolicy, Callback callback) {
+		executor.execute(() -> {
+			try {
+				writeAtomicSyncInternal(context, content, syncPolicy);
+				handler.post(() -> callback.onSuccess(null));
+			} catch (Exception e) {
+				handler.post(() -> callback.onError(e));
+			}
+		});
+	}
+
+	public void writeBufferAtomicSync(Context context, ByteBuffer content, int syncPolicy, @Nullable Callback callback) {
+		try {
+			writeBufferAtomicSyncInternal(context, content, syncPolicy);
+		} catch (Exception e) {
+			if (callback != null) {
+				callback.onError(e);
+			}
+		}
+	}
+
+	public void writeBufferAtomic(Context context, ByteBuffer content, int syncPolicy, Callback callback) {
+		executor.execute(() -> {
+			try {
+				writeBufferAtomicSyncInternal(context, content, syncPolicy);
+				handler.post(() -> callback.onSuccess(null));
+			} catch (Exception e) {
+				handler.post(() -> callback.onError(e));
+			}
+		});
+	}
+
+	public void writeTextAtomicSync(Context context, String content, @Nullable String encoding, int syncPolicy, @Nullable Callback callback) {
+		try {
+			writeTextAtomicSyncInternal(context, content, encoding, syncPolicy);
+		} catch (Exception e) {
+			if (callback != null) {
+				callback.onError(e);
+			}
+		}
+	}
+
+	public void writeTextAtomic(Context context, String content, @Nullable String encoding, int syncPolicy, Callback callback) {
+		executor.execute(() -> {
+			try {
+				writeTextAtomicSyncInternal(context, content, encoding, syncPolicy);
+				handler.post(() -> callback.onSuccess(null));
+			} catch (Exception e) {
+				handler.post(() -> callback.onError(e));
+			}
+		});
+	}
+
 	private void copyToFileInternal(InputStream is, OutputStream os) throws Exception {
 		int read;
 		byte[] buf = new byte[1024];